@@ -0,0 +1,27 @@
+package texteditor.api;
+
+/**
+ * A position in the text (i.e., a bookmark) that moves with the text as 
+ * it is edited. Text inserted exactly at an anchor is inserted after it, 
+ * and an anchor inside text that is replaced moves to the start of the 
+ * replacement. 
+ */
+public interface Anchor {
+
+    /**
+     * 
+     * @return Current index of the anchor, or -1 if it has been removed. 
+     */
+    int getOffset(); 
+
+    /**
+     * 
+     * @return True if the anchor has been removed. 
+     */
+    boolean isRemoved(); 
+
+    /**
+     * Stop tracking the anchor. Removing it again has no effect. 
+     */
+    void remove(); 
+}
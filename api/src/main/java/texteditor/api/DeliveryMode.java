@@ -0,0 +1,26 @@
+package texteditor.api;
+
+/**
+ * How text changes are delivered to a handler. 
+ */
+public enum DeliveryMode {
+
+    /**
+     * Every change is delivered on the application thread as soon as it 
+     * is made. The handler may modify the text. 
+     */
+    SYNC, 
+
+    /**
+     * Changes are delivered on a worker thread, in order. Changes made 
+     * while the handler is busy are delivered together as one batch. 
+     * The handler must not modify the text or access the GUI directly. 
+     */
+    ASYNC, 
+
+    /**
+     * Like ASYNC, but changes are only delivered once the text has 
+     * stopped changing for a short time (i.e., the user stopped typing). 
+     */
+    DEBOUNCED
+}
@@ -0,0 +1,85 @@
+package texteditor.api;
+
+/**
+ * A single edit for TextEditorAPI.applyEdits: the text in a range is
+ * replaced by new text. Insertions have an empty range and deletions
+ * have empty text.
+ */
+public final class Edit {
+
+    // Start of the replaced range (inclusive).
+    private final int start;
+
+    // End of the replaced range (exclusive).
+    private final int end;
+
+    // Replacement text.
+    private final String text;
+
+    /**
+     * Constructor.
+     *
+     * @param start Start of the replaced range (inclusive).
+     * @param end End of the replaced range (exclusive).
+     * @param text Replacement text.
+     * @throws IllegalArgumentException If the range is invalid.
+     */
+    public Edit(int start, int end, String text) {
+        if (start < 0 || end < start) {
+            throw new IllegalArgumentException("Invalid range " + start + " to " + end);
+        }
+
+        this.start = start;
+        this.end = end;
+        this.text = (text == null) ? "" : text;
+    }
+
+    /**
+     *
+     * @param idx The index.
+     * @param text The text to insert.
+     * @return An edit inserting text at an index.
+     */
+    public static Edit insert(int idx, String text) {
+        return new Edit(idx, idx, text);
+    }
+
+    /**
+     *
+     * @param start The start index.
+     * @param end The end index.
+     * @return An edit deleting a range of text.
+     */
+    public static Edit delete(int start, int end) {
+        return new Edit(start, end, "");
+    }
+
+    /**
+     *
+     * @return Start of the replaced range (inclusive).
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     *
+     * @return End of the replaced range (exclusive).
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    /**
+     *
+     * @return Replacement text (possibly empty).
+     */
+    public String getText() {
+        return text;
+    }
+
+    @Override
+    public String toString() {
+        return "Edit[" + start + ", " + end + ", \"" + text + "\"]";
+    }
+}
@@ -0,0 +1,58 @@
+package texteditor.api;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares what a plugin contributes to the editor, so that the plugin 
+ * can be started lazily. The editor registers the declared buttons and 
+ * function keys itself, and only creates and starts the plugin the first 
+ * time one of them is used (or, if the plugin declares text handlers, 
+ * after the first change to the text). Plugins without a descriptor are 
+ * started as soon as they are loaded. 
+ * 
+ * The plugin must register exactly the declared buttons and keys in 
+ * start; the handlers it registers for them replace the editor's. 
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface PluginDescriptor {
+
+    /**
+     * 
+     * @return Base name of the plugin's resource bundle, or "" if the 
+     *         name and labels are not localised. 
+     */
+    String bundle() default ""; 
+
+    /**
+     * 
+     * @return Plugin name (a key in the bundle, if there is one). 
+     */
+    String name(); 
+
+    /**
+     * 
+     * @return Labels of the buttons the plugin registers (keys in the 
+     *         bundle, if there is one). 
+     */
+    String[] buttons() default {}; 
+
+    /**
+     * 
+     * @return Function keys the plugin registers. 
+     */
+    FunctionKey[] functionKeys() default {}; 
+
+    /**
+     * 
+     * @return True if the plugin registers text change or modification 
+     *         handlers. The plugin is started after the first change to 
+     *         the text, and is not notified of that change. 
+     */
+    boolean handlers() default false; 
+}
@@ -0,0 +1,28 @@
+package texteditor.api;
+
+import java.util.List;
+
+/**
+ * Receives the results of a background search, on the application thread. 
+ * Offsets refer to the current text: matches are moved to follow edits 
+ * made while the search runs, and matches that were edited are dropped. 
+ */
+public interface SearchHandler {
+
+    /**
+     * Called with each batch of matches as they are found, in order. 
+     * 
+     * @param matches The matches. 
+     */
+    void onMatches(List<TextRange> matches); 
+
+    /**
+     * Called once the whole text has been searched, or the search has 
+     * failed partway (the count is then of the matches found before it 
+     * failed). Not called if the search is cancelled. 
+     * 
+     * @param count Total number of matches found. 
+     */
+    default void onSearchComplete(int count) {
+    }
+}
@@ -0,0 +1,84 @@
+package texteditor.api;
+
+/**
+ * Describes a single modification of the text: a range of text starting 
+ * at an offset was removed and replaced by new text. Either may be empty.
+ */
+public final class TextChange {
+
+    // Offset at which the text was modified.
+    private final int offset;
+
+    // Text removed from the offset.
+    private final CharSequence removedText;
+
+    // Text inserted at the offset.
+    private final CharSequence insertedText;
+
+    // Document version after the change.
+    private final long version;
+
+    /**
+     * Constructor.
+     * 
+     * @param offset Offset at which the text was modified.
+     * @param removedText Text removed from the offset.
+     * @param insertedText Text inserted at the offset.
+     * @param version Document version after the change.
+     */
+    public TextChange(int offset, CharSequence removedText, CharSequence insertedText, long version) {
+        this.offset = offset;
+        this.removedText = removedText;
+        this.insertedText = insertedText;
+        this.version = version;
+    }
+
+    /**
+     * 
+     * @return Offset at which the text was modified.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Get the removed text. Use toString() if a String copy is needed.
+     * 
+     * @return Text removed from the offset (possibly empty).
+     */
+    public CharSequence getRemovedText() {
+        return removedText;
+    }
+
+    /**
+     * Get the inserted text. Use toString() if a String copy is needed.
+     * 
+     * @return Text inserted at the offset (possibly empty).
+     */
+    public CharSequence getInsertedText() {
+        return insertedText;
+    }
+
+    /**
+     * The document version increases by one with every change.
+     * 
+     * @return Document version after the change.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * 
+     * @return Offset of the end of the inserted text.
+     */
+    public int getInsertedEnd() {
+        return offset + insertedText.length();
+    }
+
+    @Override
+    public String toString() {
+        return "TextChange[offset=" + offset + ", removed=" + removedText.length() 
+            + ", inserted=" + insertedText.length() + ", version=" + version + "]";
+    }
+}
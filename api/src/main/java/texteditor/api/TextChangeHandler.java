@@ -0,0 +1,31 @@
+package texteditor.api;
+
+import java.util.List;
+
+/**
+ * Handle a text change. 
+ * Unlike TextModificationHandler, only the changed region is reported, 
+ * so the cost of handling a change does not depend on the size of the text.
+ */
+public interface TextChangeHandler {
+
+    /**
+     * Should be called on every change to the text area. 
+     * 
+     * @param change The change. 
+     */
+    void onTextChanged(TextChange change); 
+
+    /**
+     * Called with a batch of consecutive changes, in order, when the 
+     * handler was registered with an asynchronous delivery mode. 
+     * By default each change is handled separately. 
+     * 
+     * @param changes The changes. 
+     */
+    default void onTextChanges(List<TextChange> changes) {
+        for (TextChange change : changes) {
+            onTextChanged(change);
+        }
+    }
+}
@@ -1,6 +1,10 @@
 package texteditor.api;
 
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 /**
  * Text editor API.
@@ -29,11 +33,60 @@ public interface TextEditorAPI {
 
     /**
      * Register a text modification callback. 
+     * The handler receives the entire text before and after every change; 
+     * prefer registerTextChangeHandler, which only receives the change. 
+     * Changes are delivered synchronously, but a handler that is often 
+     * slow may be moved to DEBOUNCED delivery or suspended. 
      * 
      * @param callback The event handler. 
      */
     void registerTextModificationHandler(TextModificationHandler callback);
 
+    /**
+     * Register a text modification callback with a delivery mode. 
+     * With ASYNC or DEBOUNCED delivery, a burst of changes is reported as 
+     * one call, with the text before the first change and after the last. 
+     * A handler registered with SYNC delivery is always delivered to 
+     * synchronously, however slow it is. 
+     * 
+     * @param callback The event handler. 
+     * @param mode How changes are delivered. 
+     */
+    void registerTextModificationHandler(TextModificationHandler callback, DeliveryMode mode);
+
+    /**
+     * Register a text change callback. 
+     * The handler receives the offset, removed text and inserted text of 
+     * every change, along with the document version. 
+     * Changes are delivered synchronously, but a handler that is often 
+     * slow may be moved to DEBOUNCED delivery or suspended. 
+     * 
+     * @param callback The event handler. 
+     */
+    void registerTextChangeHandler(TextChangeHandler callback);
+
+    /**
+     * Register a text change callback with a delivery mode. 
+     * With ASYNC or DEBOUNCED delivery, a burst of changes is reported as 
+     * one call to onTextChanges. A handler registered with SYNC delivery 
+     * is always delivered to synchronously, however slow it is. 
+     * 
+     * @param callback The event handler. 
+     * @param mode How changes are delivered. 
+     */
+    void registerTextChangeHandler(TextChangeHandler callback, DeliveryMode mode);
+
+    /**
+     * Register auto-replace rules. Whenever the user types (or pastes) 
+     * one of the keys, it is replaced by its value. Only the characters 
+     * around each change are examined, so the cost of a keystroke does 
+     * not depend on the number of rules or the size of the text. 
+     * Rules registered later replace earlier rules with the same key. 
+     * 
+     * @param rules Map of keys to their replacements. 
+     */
+    void registerAutoReplace(Map<String, String> rules);
+
     // API functions. 
 
     /**
@@ -83,6 +136,90 @@ public interface TextEditorAPI {
      */
     int getTextLength(); 
 
+    /**
+     * Get an immutable snapshot of the text. Unlike getText, this does not 
+     * copy the text, and the snapshot does not change as the text is 
+     * edited. Snapshots are shared until the text changes, so this is 
+     * cheap to call often. 
+     * 
+     * @return The snapshot. 
+     */
+    TextSnapshot getSnapshot(); 
+
+    /**
+     * Get the number of lines. Lines are separated by newlines, so an 
+     * empty text has one line. 
+     * 
+     * @return Number of lines. 
+     */
+    int getLineCount();
+
+    /**
+     * Get the index at which a line starts. If the line is out of bounds, 
+     * it will be set to the first or last line respectively. 
+     * 
+     * @param line Line number, starting from 0. 
+     * @return Index of the first character of the line. 
+     */
+    int getLineStart(int line);
+
+    /**
+     * Get the line containing an index. If the index is out of bounds, 
+     * it will be set to 0 or the length of the text area respectively. 
+     * 
+     * @param pos The index. 
+     * @return Line number, starting from 0. 
+     */
+    int getLineOfOffset(int pos);
+
+    /**
+     * Find the next occurrence of a term. The first search for a term 
+     * indexes the whole text; the index is then kept up to date as the 
+     * text changes, so repeated searches are fast. 
+     * 
+     * @param term The text to look for. 
+     * @param fromIdx The index to search from. 
+     * @return Index of the first occurrence at or after fromIdx, or -1 if there is none. 
+     */
+    int findNext(String term, int fromIdx);
+
+    /**
+     * Find the previous occurrence of a term (see findNext). 
+     * 
+     * @param term The text to look for. 
+     * @param fromIdx The index to search back from. 
+     * @return Index of the last occurrence starting before fromIdx, or -1 if there is none. 
+     */
+    int findPrevious(String term, int fromIdx);
+
+    /**
+     * Count the occurrences of a term (see findNext). 
+     * Overlapping occurrences are counted separately. 
+     * 
+     * @param term The text to look for. 
+     * @return Number of occurrences. 
+     */
+    int countAll(String term);
+
+    /**
+     * Search for a regular expression in the background. The search runs 
+     * on a worker thread over a snapshot of the text, so it can be used on 
+     * any amount of text without blocking the editor. Matches are passed 
+     * to the handler in batches as they are found. 
+     * Starting a new search cancels the previous one. 
+     * ^ and $ match at the start and end of every line. 
+     * 
+     * @param regex The regular expression (see java.util.regex.Pattern). 
+     * @param handler Receives the matches, on the application thread. 
+     * @throws java.util.regex.PatternSyntaxException If the expression is invalid. 
+     */
+    void searchRegex(String regex, SearchHandler handler);
+
+    /**
+     * Cancel the current background search, if any. 
+     */
+    void cancelSearch();
+
     /**
      * Modify the position of the caret. 
      * If the position is less than 0, it is set to 0 (the start).
@@ -137,6 +274,23 @@ public interface TextEditorAPI {
      */
     void replaceText(String find, String replace);
 
+    /**
+     * Replace the specified text with another string, within a range. 
+     * Only occurrences lying entirely within the range are replaced. 
+     * Each occurrence is replaced by its own edit, and all of them are 
+     * applied as one change, so the cost depends on the size of the range 
+     * rather than the whole text. If the range is out of bounds, the 
+     * index will be set to 0 or the length of the text area for the start 
+     * and end index respectively. 
+     * 
+     * @param find Text to find.
+     * @param replace Text in place of found string.
+     * @param startIdx The start index. 
+     * @param endIdx The end index. 
+     * @return The number of occurrences replaced. 
+     */
+    int replaceText(String find, String replace, int startIdx, int endIdx);
+
     /**
      * Select text in a range 
      * 
@@ -144,4 +298,153 @@ public interface TextEditorAPI {
      * @param endIdx End index. 
      */
     void highlightText(int startIdx, int endIdx); 
+
+    /**
+     * Highlight ranges of text, without selecting them. Highlights are 
+     * grouped into named layers, and move with the text as it is edited 
+     * (a highlight shrinks if part of its text is replaced, and is removed 
+     * once all of it is). Any number of ranges can be highlighted; only 
+     * those on screen are drawn. 
+     * 
+     * @param layer Name of the layer to add the highlights to. 
+     * @param ranges The ranges. 
+     */
+    void addHighlights(String layer, List<TextRange> ranges);
+
+    /**
+     * Remove every highlight in a layer. 
+     * 
+     * @param layer Name of the layer. 
+     */
+    void clearHighlights(String layer);
+
+    // Anchors. 
+
+    /**
+     * Create an anchor: a position that moves with the text as it is 
+     * edited. Keeping track of anchors costs O(log n) per edit for n 
+     * anchors, so any number of them can be kept. If the index is out of 
+     * bounds, it will be set to 0 or the length of the text. 
+     * 
+     * @param idx Index of the anchor. 
+     * @return The anchor. 
+     */
+    Anchor createAnchor(int idx);
+
+    // Edit transactions. 
+
+    /**
+     * Start an edit transaction. Until the matching commit, edits made 
+     * through this API are applied to the text (and seen by getText), but 
+     * the text area is only updated once, on commit, the handlers are 
+     * notified of a single change covering every edit, and the edits are 
+     * undone as a single step. 
+     * Transactions may be nested; only the outermost commit takes effect. 
+     */
+    void beginEdit();
+
+    /**
+     * End an edit transaction. Should be called in a finally block. 
+     * 
+     * @throws IllegalStateException If no transaction was started. 
+     */
+    void commit();
+
+    /**
+     * Apply a list of edits as one change. 
+     * Every edit's range refers to the text before any of the edits are 
+     * applied, so ranges must not overlap. Insertions at the same index 
+     * are inserted in list order. 
+     * 
+     * @param edits The edits. 
+     * @throws IllegalArgumentException If edits overlap or are out of bounds. 
+     */
+    void applyEdits(List<Edit> edits);
+
+    // Undo/redo. 
+
+    /**
+     * Undo the most recent change to the text (an edit transaction, a 
+     * run of typing, or any other change). Does nothing inside an edit 
+     * transaction. 
+     * 
+     * @return True if a change was undone. 
+     */
+    boolean undo();
+
+    /**
+     * Redo the most recently undone change. Does nothing inside an edit 
+     * transaction. 
+     * 
+     * @return True if a change was redone. 
+     */
+    boolean redo();
+
+    // Asynchronous calls. 
+    // The API may be called from any thread; calls from threads other 
+    // than the application thread are queued and run on it in order. 
+    // The methods above wait for calls that return a value; these don't. 
+    // Calls that return nothing are not waited for either, so their 
+    // exceptions are only reported (use the variants below to get them). 
+
+    /**
+     * Run a call on the application thread, without waiting for it. 
+     * 
+     * @param call The call, given this API. 
+     * @return Completes with the call's value once it has run (inside an 
+     *         edit transaction, once the transaction is committed). 
+     */
+    <T> CompletableFuture<T> callAsync(Function<TextEditorAPI, T> call);
+
+    /**
+     * Asynchronous insertText. 
+     * 
+     * @param idx Index to insert at. 
+     * @param text Text to insert. 
+     * @return Completes once the text has been inserted. 
+     */
+    default CompletableFuture<Void> insertTextAsync(int idx, String text) {
+        return callAsync(api -> {
+            api.insertText(idx, text);
+            return null;
+        });
+    }
+
+    /**
+     * Asynchronous deleteText. 
+     * 
+     * @param startIdx Start index. 
+     * @param endIdx End index. 
+     * @return Completes with the deleted text. 
+     */
+    default CompletableFuture<String> deleteTextAsync(int startIdx, int endIdx) {
+        return callAsync(api -> api.deleteText(startIdx, endIdx));
+    }
+
+    /**
+     * Asynchronous replaceText. 
+     * 
+     * @param find Text to find. 
+     * @param replace Text in place of found string. 
+     * @param startIdx The start index. 
+     * @param endIdx The end index. 
+     * @return Completes with the number of occurrences replaced. 
+     */
+    default CompletableFuture<Integer> replaceTextAsync(String find, String replace, int startIdx, int endIdx) {
+        return callAsync(api -> api.replaceText(find, replace, startIdx, endIdx));
+    }
+
+    /**
+     * Asynchronous applyEdits. 
+     * 
+     * @param edits The edits. 
+     * @return Completes once the edits have been applied, or with an 
+     *         IllegalArgumentException if they overlap or are out of bounds. 
+     */
+    default CompletableFuture<Void> applyEditsAsync(List<Edit> edits) {
+        return callAsync(api -> {
+            api.applyEdits(edits);
+            return null;
+        });
+    }
 }
@@ -0,0 +1,59 @@
+package texteditor.api;
+
+/**
+ * A range of the text, from a start index (inclusive) to an end 
+ * index (exclusive). 
+ */
+public final class TextRange {
+
+    // Start index (inclusive).
+    private final int start;
+
+    // End index (exclusive).
+    private final int end;
+
+    /**
+     * Constructor.
+     * 
+     * @param start Start index (inclusive).
+     * @param end End index (exclusive).
+     * @throws IllegalArgumentException If the range is invalid.
+     */
+    public TextRange(int start, int end) {
+        if (start < 0 || end < start) {
+            throw new IllegalArgumentException("Invalid range " + start + " to " + end);
+        }
+
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * 
+     * @return Start index (inclusive).
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * 
+     * @return End index (exclusive).
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    /**
+     * 
+     * @return Length of the range.
+     */
+    public int getLength() {
+        return end - start;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + start + ", " + end + ")";
+    }
+}
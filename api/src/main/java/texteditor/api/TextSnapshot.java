@@ -0,0 +1,43 @@
+package texteditor.api;
+
+/**
+ * An immutable view of the text at one version. The text is not copied 
+ * when the snapshot is taken, or when it is read (except by toString), 
+ * and the snapshot never changes as the text is edited, so it can be 
+ * read as often as needed, from any thread. 
+ */
+public interface TextSnapshot extends CharSequence {
+
+    /**
+     * 
+     * @return Version of the text (see TextChange.getVersion). 
+     */
+    long getVersion(); 
+
+    /**
+     * Get part of the snapshot, without copying it. 
+     * 
+     * @param start Start index (inclusive). 
+     * @param end End index (exclusive). 
+     * @return A snapshot of the range, at the same version. 
+     */
+    @Override
+    TextSnapshot subSequence(int start, int end); 
+
+    /**
+     * Iterate over the text in chunks, in order. Each chunk is a 
+     * read-only view of the text, and chunks are not copied. 
+     * 
+     * @return The chunks. 
+     */
+    Iterable<CharSequence> chunks(); 
+
+    /**
+     * Iterate over the lines of the text, in order. Each line is a view 
+     * of the text without its line break. Text ending with a line break 
+     * ends with an empty line. 
+     * 
+     * @return The lines. 
+     */
+    Iterable<TextSnapshot> lines(); 
+}
@@ -12,7 +12,11 @@ import java.util.ResourceBundle;
 
 import javafx.application.Application;
 import javafx.stage.Stage;
+import texteditor.app.io.EditJournal;
+import texteditor.app.io.FileIO;
+import texteditor.app.model.KeyMapTable;
 import texteditor.app.model.KeyMapping;
+import texteditor.app.plugins.CallbackMonitor;
 import texteditor.app.plugins.PluginManager;
 import texteditor.app.plugins.ScriptManager;
 import texteditor.app.ui.MainUI;
@@ -23,6 +27,12 @@ import texteditor.app.ui.MainUI;
  */
 public class TextEditorApp extends Application {
 
+    // Name of the journal file, in the application's data directory. 
+    private static final String JOURNAL_FILE = "journal";
+
+    // The main UI. 
+    private MainUI ui;
+
     /**
      * Main. 
      * 
@@ -56,20 +66,85 @@ public class TextEditorApp extends Application {
             }
         }
 
-        List<KeyMapping> keyMap = null;
-        MainUI ui = new MainUI(bundle, new PluginManager(bundle), new ScriptManager()); 
+        KeyMapTable keyMap = null;
+        CallbackMonitor monitor = new CallbackMonitor();
+        ScriptManager scriptManager = new ScriptManager(monitor);
+        ui = new MainUI(bundle, new PluginManager(bundle, monitor), scriptManager, monitor); 
 
         try {
-            keyMap = KeyMapParser.parse(
+            List<KeyMapping> keyMapList = KeyMapParser.parse(
                 new FileInputStream("app/src/main/resources/keymap")
             );
+            // The first mapping of a duplicate or conflicting combination 
+            // is used. 
+            keyMap = new KeyMapTable(keyMapList);
+
+            if (!keyMap.getConflicts().isEmpty()) {
+                ui.showError(bundle.getString("keymap_conflict_warn"), String.join("\n", keyMap.getConflicts()));
+            }
         } catch (IOException e) {
             ui.showError(bundle.getString("keymap_err"), e.getMessage());
         } catch (ParseException e2) {
             ui.showError(bundle.getString("parse_err"), e2.getMessage());
         }
 
-        ui.setKeyMapList(keyMap);
+        ui.setKeyMap(keyMap);
+
+        // Memory limit of the undo history, in kilobytes. 
+        String undoLimit = getParameters().getNamed().get("undo-limit");
+        if (undoLimit != null) {
+            try {
+                ui.setUndoLimit(Long.parseLong(undoLimit) * 1024);
+            } catch (NumberFormatException e) {
+                ui.showError(bundle.getString("undo_limit_err"), undoLimit);
+            }
+        }
+
+        // Time a script may run for, in seconds. 
+        String scriptTimeout = getParameters().getNamed().get("script-timeout");
+        if (scriptTimeout != null) {
+            try {
+                scriptManager.setTimeout(Long.parseLong(scriptTimeout) * 1000);
+            } catch (NumberFormatException e) {
+                ui.showError(bundle.getString("script_timeout_err"), scriptTimeout);
+            }
+        }
+
+        // Time a text handler may take per change, in milliseconds. 
+        String handlerBudget = getParameters().getNamed().get("handler-budget");
+        if (handlerBudget != null) {
+            try {
+                ui.setHandlerBudget(Long.parseLong(handlerBudget) * 1_000_000);
+            } catch (NumberFormatException e) {
+                ui.showError(bundle.getString("handler_budget_err"), handlerBudget);
+            }
+        }
+
+        // Suspend text handlers that keep going over it, rather than 
+        // moving them to debounced delivery. 
+        if ("suspend".equals(getParameters().getNamed().get("slow-handlers"))) {
+            ui.setSuspendSlowHandlers(true);
+        }
+
+        // Recover the previous session if it did not close normally, and 
+        // record this session's edits. 
+        try {
+            ui.setJournal(EditJournal.open(FileIO.getAppDir().resolve(JOURNAL_FILE)));
+        } catch (IOException e) {
+            ui.showError(bundle.getString("journal_err"), e.getMessage());
+        }
+
         ui.display(stage);
+        ui.loadPlugins();
+    }
+
+    /**
+     * Called when the application exits normally. 
+     */
+    @Override
+    public void stop() {
+        if (ui != null) {
+            ui.close();
+        }
     }
 }
\ No newline at end of file
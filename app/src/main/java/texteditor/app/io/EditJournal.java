@@ -0,0 +1,511 @@
+package texteditor.app.io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Write-ahead journal of the edits made to the document, for recovering
+ * the document after a crash.
+ *
+ * The journal starts with a header naming the file the document was last
+ * loaded from or saved to (the base), followed by one record per edit
+ * (offset, length of the removed text, inserted text). Edits are queued
+ * and written by a background thread, which writes everything queued
+ * since its last write and then syncs the file once (group commit), so
+ * recording an edit never blocks the application thread.
+ *
+ * On startup, the document is recovered by replaying the records on top
+ * of the base. The replay uses a gap buffer, so it runs in time
+ * proportional to the size of the journal for local edits (i.e., typing).
+ * A record cut short by a crash is ignored. The journal is deleted when
+ * the editor closes normally, even if the writer has failed or does not
+ * finish in time, so a normal session is never recovered.
+ *
+ * @author Ryan Martin
+ */
+public class EditJournal {
+
+    // Identifies a journal file ("TEJ1").
+    private static final int MAGIC = 0x54454A31;
+
+    // Size of the write buffer.
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // Queued to stop the writer and delete the journal.
+    private static final Object CLOSE = new Object();
+
+    // Path of the journal file.
+    private final Path path;
+
+    // The journal file, locked for this instance of the editor.
+    private final FileChannel channel;
+    private final FileLock lock;
+
+    // Headers and records waiting to be written.
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+
+    // Writes the queued headers and records.
+    private final Thread writer = new Thread(this::write, "journal-writer");
+
+    // True once writing has failed; later edits are not recorded.
+    private volatile boolean failed = false;
+
+    // True once the journal is being closed.
+    private volatile boolean closing = false;
+
+    // Reports a failure to write the journal.
+    private volatile Consumer<String> errorReporter = System.err::println;
+
+    // Recovered document text, or null if there was nothing to recover.
+    private String recoveredText = null;
+
+    /**
+     * Open a journal, recovering the document from it if the editor did
+     * not close normally.
+     *
+     * @param path Path of the journal file.
+     * @return The journal, or null if another instance of the editor is
+     *         using it.
+     * @throws IOException If the journal cannot be opened.
+     */
+    public static EditJournal open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path,
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+
+        if (lock == null) {
+            channel.close();
+            return null;
+        }
+
+        EditJournal journal = new EditJournal(path, channel, lock);
+        journal.recover();
+        journal.writer.setDaemon(true);
+        journal.writer.start();
+
+        return journal;
+    }
+
+    private EditJournal(Path path, FileChannel channel, FileLock lock) {
+        this.path = path;
+        this.channel = channel;
+        this.lock = lock;
+    }
+
+    /**
+     *
+     * @return The recovered document text, or null if there was nothing
+     *         to recover.
+     */
+    public String getRecoveredText() {
+        return recoveredText;
+    }
+
+    /**
+     * Set how a failure to write the journal is reported (once; edits are
+     * no longer recorded after it).
+     *
+     * @param errorReporter Called with a message for the failure.
+     */
+    public void setErrorReporter(Consumer<String> errorReporter) {
+        this.errorReporter = errorReporter;
+    }
+
+    /**
+     * Start the journal again from the current document, dropping the
+     * records written so far (i.e., after the document is loaded or saved).
+     *
+     * @param base File the document was loaded from or saved to, or null
+     *        if it does not match a file.
+     * @param encoding Encoding of the file (ignored if there is no file).
+     * @param text Text of the document (ignored if there is a file).
+     */
+    public void restart(Path base, String encoding, String text) {
+        if (!failed) {
+            queue.add((base != null) ? new Header(base, encoding, null) : new Header(null, "", text));
+        }
+    }
+
+    /**
+     * Record an edit.
+     *
+     * @param offset Start of the edit.
+     * @param removedLength Length of the removed text.
+     * @param inserted Inserted text.
+     */
+    public void append(int offset, int removedLength, String inserted) {
+        if (!failed) {
+            queue.add(new Record(offset, removedLength, inserted));
+        }
+    }
+
+    /**
+     * Stop the journal and delete it. Waits (briefly) for the writer to
+     * finish; if it has failed or does not finish in time, the journal is
+     * deleted here instead.
+     */
+    public void close() {
+        closing = true;
+        queue.add(CLOSE);
+
+        try {
+            writer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (writer.isAlive() || failed) {
+            try {
+                // Also stops a writer that is still writing.
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Replay the journal, if it holds any edits. The writer then carries
+     * on after the last complete record; otherwise the journal is started
+     * again from an empty document.
+     */
+    private void recover() throws IOException {
+        long size = channel.size();
+        long valid = 0;
+
+        if (size > 0 && size <= Integer.MAX_VALUE) {
+            ByteBuffer buf = ByteBuffer.allocate((int)size);
+            while (buf.hasRemaining() && channel.read(buf, buf.position()) >= 0) {
+                // Read the whole file.
+            }
+            buf.flip();
+
+            try {
+                if (buf.getInt() == MAGIC) {
+                    String base = readString(buf);
+                    String encoding = readString(buf);
+                    long baseSize = buf.getLong();
+                    long baseModified = buf.getLong();
+
+                    GapText text = new GapText(loadBase(base, encoding, baseSize, baseModified));
+                    valid = buf.position();
+                    int records = 0;
+
+                    while (replay(buf, text)) {
+                        valid = buf.position();
+                        records++;
+                    }
+
+                    if (records > 0) {
+                        recoveredText = text.toString();
+                    }
+                }
+            } catch (BufferUnderflowException | IOException e) {
+                // Cut short, or the base file has changed: nothing to recover.
+            }
+        }
+
+        if (recoveredText != null) {
+            channel.truncate(valid);
+            channel.position(valid);
+        } else {
+            channel.truncate(0);
+            channel.position(0);
+            queue.add(new Header(null, "", ""));
+        }
+    }
+
+    /**
+     * Load the text of the base file.
+     *
+     * @param base Path of the base file, or "" if there is none.
+     * @param encoding Encoding of the file.
+     * @param size Size of the file when the journal was started.
+     * @param modified Modification time of the file when the journal was started.
+     * @return The text of the file.
+     * @throws IOException If the file cannot be read, or has changed.
+     */
+    private static CharSequence loadBase(String base, String encoding, long size, long modified) throws IOException {
+        if (base.isEmpty()) {
+            return "";
+        }
+
+        Path file = Paths.get(base);
+        if (Files.size(file) != size || Files.getLastModifiedTime(file).toMillis() != modified) {
+            throw new IOException("Base file has changed: " + base);
+        }
+
+        // Decode the file exactly as when it was loaded.
+        MappedText text = new MappedText(file, Charset.forName(encoding));
+        try {
+            return text.toString();
+        } catch (IllegalStateException e) {
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            text.release();
+        }
+    }
+
+    /**
+     * Apply the next record to the text.
+     *
+     * @param buf Journal contents, positioned at the record.
+     * @param text The text.
+     * @return False if there are no more complete, valid records.
+     */
+    private static boolean replay(ByteBuffer buf, GapText text) {
+        if (buf.remaining() < 12) {
+            return false;
+        }
+
+        int offset = buf.getInt();
+        int removed = buf.getInt();
+        int inserted = buf.getInt();
+
+        if (offset < 0 || removed < 0 || inserted < 0
+                || (long)offset + removed > text.length()
+                || buf.remaining() < 2L * inserted) {
+            return false;
+        }
+
+        CharBuffer chars = buf.asCharBuffer();
+        chars.limit(inserted);
+        text.replace(offset, removed, chars);
+        buf.position(buf.position() + 2 * inserted);
+
+        return true;
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0 || length > buf.remaining() / 2) {
+            throw new BufferUnderflowException();
+        }
+
+        char[] chars = new char[length];
+        buf.asCharBuffer().get(chars);
+        buf.position(buf.position() + 2 * length);
+
+        return new String(chars);
+    }
+
+    /**
+     * Write the queued headers and records until the journal is closed
+     * (writer thread).
+     */
+    private void write() {
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+        List<Object> batch = new ArrayList<>();
+
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+
+                for (Object item : batch) {
+                    if (item == CLOSE) {
+                        out.flush();
+                        lock.release();
+                        channel.close();
+                        Files.deleteIfExists(path);
+                        return;
+                    } else if (item instanceof Header) {
+                        out.flush();
+                        channel.truncate(0);
+                        channel.position(0);
+                        ((Header)item).write(out);
+                    } else {
+                        ((Record)item).write(out);
+                    }
+                }
+
+                out.flush();
+                channel.force(false);
+                batch.clear();
+            }
+        } catch (IOException e) {
+            failed = true;
+            queue.clear();
+
+            if (!closing) {
+                errorReporter.accept(e.toString());
+            }
+        } catch (InterruptedException e) {
+            failed = true;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeInt(s.length());
+        out.writeChars(s);
+    }
+
+    /**
+     * Start of the journal: the base file, or the whole text if there is
+     * no base file.
+     */
+    private static final class Header {
+
+        // Base file (or null), and its encoding.
+        final Path base;
+        final String encoding;
+
+        // Text of the document if there is no base file.
+        final String text;
+
+        Header(Path base, String encoding, String text) {
+            this.base = base;
+            this.encoding = encoding;
+            this.text = text;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(MAGIC);
+
+            if (base != null) {
+                writeString(out, base.toAbsolutePath().toString());
+                writeString(out, encoding);
+                out.writeLong(Files.size(base));
+                out.writeLong(Files.getLastModifiedTime(base).toMillis());
+            } else {
+                writeString(out, "");
+                writeString(out, encoding);
+                out.writeLong(0);
+                out.writeLong(0);
+
+                if (!text.isEmpty()) {
+                    new Record(0, 0, text).write(out);
+                }
+            }
+        }
+    }
+
+    /**
+     * An edit.
+     */
+    private static final class Record {
+
+        // Start of the edit, and length of the removed text.
+        final int offset;
+        final int removedLength;
+
+        // Inserted text.
+        final String inserted;
+
+        Record(int offset, int removedLength, String inserted) {
+            this.offset = offset;
+            this.removedLength = removedLength;
+            this.inserted = inserted;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(offset);
+            out.writeInt(removedLength);
+            out.writeInt(inserted.length());
+            out.writeChars(inserted);
+        }
+    }
+
+    /**
+     * Text in a gap buffer, for replaying edits.
+     */
+    private static final class GapText {
+
+        // The characters, with a gap.
+        private char[] chars;
+
+        // Gap position (inclusive start, exclusive end).
+        private int gapStart;
+        private int gapEnd;
+
+        GapText(CharSequence text) {
+            chars = new char[Math.max(16, text.length() * 2)];
+            text.toString().getChars(0, text.length(), chars, 0);
+            gapStart = text.length();
+            gapEnd = chars.length;
+        }
+
+        int length() {
+            return chars.length - (gapEnd - gapStart);
+        }
+
+        /**
+         * Replace part of the text.
+         *
+         * @param offset Start of the replaced text.
+         * @param removed Length of the replaced text.
+         * @param inserted Replacement text.
+         */
+        void replace(int offset, int removed, CharBuffer inserted) {
+            moveGap(offset);
+            gapEnd += removed;
+
+            int n = inserted.remaining();
+            if (gapEnd - gapStart < n) {
+                grow(n);
+            }
+
+            inserted.get(chars, gapStart, n);
+            gapStart += n;
+        }
+
+        private void moveGap(int pos) {
+            if (pos < gapStart) {
+                int n = gapStart - pos;
+                System.arraycopy(chars, pos, chars, gapEnd - n, n);
+                gapStart -= n;
+                gapEnd -= n;
+            } else if (pos > gapStart) {
+                int n = pos - gapStart;
+                System.arraycopy(chars, gapEnd, chars, gapStart, n);
+                gapStart += n;
+                gapEnd += n;
+            }
+        }
+
+        private void grow(int needed) {
+            int after = chars.length - gapEnd;
+            char[] grown = new char[Math.max(chars.length * 2, length() + needed + 16)];
+
+            System.arraycopy(chars, 0, grown, 0, gapStart);
+            System.arraycopy(chars, gapEnd, grown, grown.length - after, after);
+
+            chars = grown;
+            gapEnd = grown.length - after;
+        }
+
+        @Override
+        public String toString() {
+            return new StringBuilder(length())
+                .append(chars, 0, gapStart)
+                .append(chars, gapEnd, chars.length - gapEnd)
+                .toString();
+        }
+    }
+}
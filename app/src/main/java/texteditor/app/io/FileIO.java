@@ -1,14 +1,46 @@
 package texteditor.app.io;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import texteditor.app.model.PieceTable;
 
 /**
  * Methods for file saving and loading.
  * @author Ryan Martin
  */
 public class FileIO {
+
+    // Number of characters encoded at a time when saving. 
+    private static final int SAVE_BUFFER_SIZE = 1 << 16;
+
+    // Name of the application's data directory, in the user's home directory. 
+    private static final String APP_DIR = ".texteditor";
+
+    /**
+     * Get the application's data directory, creating it if needed. 
+     * 
+     * @return Path of the directory. 
+     * @throws IOException If the directory cannot be created. 
+     */
+    public static Path getAppDir() throws IOException {
+        Path dir = Paths.get(System.getProperty("user.home"), APP_DIR);
+        Files.createDirectories(dir);
+        return dir;
+    }
     
     /**
      * Load a file with a specified encoding. 
@@ -23,16 +55,138 @@ public class FileIO {
     }
 
     /**
-     * Save a file to a path using a specified encoding. 
+     * Map a file into memory with a specified encoding. The file is 
+     * decoded lazily, a block at a time, as the text is read. 
+     * 
+     * @param fileName File name.
+     * @param encoding Encoding string.
+     * @return The text of the file. 
+     * @throws IOException If an IO exception occurs. 
+     */
+    public static MappedText mapFile(String fileName, String encoding) throws IOException {
+        return new MappedText(Paths.get(fileName), Charset.forName(encoding));
+    }
+
+    /**
+     * Save a document to a path using a specified encoding. 
+     * 
+     * The document is encoded a buffer at a time straight into a temporary 
+     * file next to the target, so saving takes constant extra memory. The 
+     * temporary file is synced to disk and then renamed over the target, 
+     * so the target is never left partially written. 
      * 
      * @param fileName Output file name. 
      * @param data Content to write. 
      * @param encoding Encoding string. 
      * @throws IOException If an IO exception occurs. 
      */
-    public static void saveFile(String fileName, String data, String encoding) throws IOException {
-        if (data != null) {
-            Files.write(Paths.get(fileName), data.getBytes(encoding));
+    public static void saveFile(String fileName, PieceTable data, String encoding) throws IOException {
+        if (data == null) {
+            return;
+        }
+
+        Path target = Paths.get(fileName).toAbsolutePath();
+        Path dir = target.getParent();
+        Path temp = Files.createTempFile(dir, "." + target.getFileName(), ".tmp");
+
+        try {
+            // Temporary files are only readable by the owner; give the new 
+            // file the permissions of the file it replaces instead. 
+            try {
+                Files.setPosixFilePermissions(temp, Files.exists(target)
+                    ? Files.getPosixFilePermissions(target)
+                    : PosixFilePermissions.fromString("rw-r--r--"));
+            } catch (UnsupportedOperationException e) {
+                // Not a POSIX file system. 
+            }
+
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                writeEncoded(data, Charset.forName(encoding), channel);
+                channel.force(true);
+            } catch (IllegalStateException e) {
+                // The document's file could not be read (i.e., it has changed). 
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException)e.getCause();
+                }
+                throw e;
+            }
+
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+        // Make the rename itself durable. Not every platform can sync a 
+        // directory, in which case the rename is still atomic. 
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Ignored. 
+        }
+    }
+
+    /**
+     * Encode a document into a channel, a buffer at a time. 
+     * 
+     * @param data Document. 
+     * @param charset Charset to encode with. 
+     * @param channel Output channel. 
+     * @throws IOException If an IO exception occurs. 
+     */
+    private static void writeEncoded(PieceTable data, Charset charset, FileChannel channel) throws IOException {
+        CharsetEncoder encoder = charset.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        CharBuffer in = CharBuffer.allocate(SAVE_BUFFER_SIZE);
+        ByteBuffer out = ByteBuffer.allocate((int)Math.ceil(SAVE_BUFFER_SIZE * encoder.maxBytesPerChar()));
+
+        int length = data.length();
+        int pos = 0;
+        boolean last = false;
+
+        while (!last) {
+            // Top up the buffer after whatever the encoder left last time 
+            // (i.e., half of a surrogate pair). 
+            int n = Math.min(in.remaining(), length - pos);
+            data.getChars(pos, pos + n, in.array(), in.arrayOffset() + in.position());
+            in.position(in.position() + n);
+            pos += n;
+            last = (pos == length);
+
+            in.flip();
+            CoderResult result;
+            while ((result = encoder.encode(in, out, last)).isOverflow()) {
+                write(out, channel);
+            }
+            if (result.isError()) {
+                result.throwException();
+            }
+            in.compact();
+        }
+
+        while (encoder.flush(out).isOverflow()) {
+            write(out, channel);
+        }
+        write(out, channel);
+    }
+
+    /**
+     * Write the contents of a buffer to a channel and clear the buffer. 
+     * 
+     * @param buf Buffer. 
+     * @param channel Channel. 
+     * @throws IOException If an IO exception occurs. 
+     */
+    private static void write(ByteBuffer buf, FileChannel channel) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
         }
+        buf.clear();
     }
 }
\ No newline at end of file
@@ -0,0 +1,107 @@
+package texteditor.app.io;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import javafx.application.Platform;
+import javafx.concurrent.Task;
+
+/**
+ * Streams a mapped file into the editor in the background.
+ *
+ * The file is decoded block by block on the worker thread, and the decoded
+ * text is handed to the JavaFX application thread in small chunks, one
+ * chunk per event, so the application thread never spends more than a
+ * fraction of a frame on the load. The first chunk is shown as soon as it
+ * has been decoded. The worker stops decoding when the application thread
+ * falls behind, so at most a few chunks are ever waiting in memory.
+ *
+ * @author Ryan Martin
+ */
+public class FileLoadTask extends Task<MappedText> {
+
+    // Maximum number of characters handed to the application thread at a time.
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    // Maximum number of chunks waiting for the application thread.
+    private static final int QUEUE_CAPACITY = 8;
+
+    // Text being loaded.
+    private final MappedText text;
+
+    // Receives each chunk of text, on the application thread.
+    private final Consumer<CharSequence> sink;
+
+    // Chunks decoded but not yet handed to the sink.
+    private final BlockingQueue<CharSequence> chunks = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    // True while a drain is scheduled on the application thread.
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+
+    /**
+     * Constructor.
+     *
+     * @param text Text to load.
+     * @param sink Receives each chunk of text, in order, on the application thread.
+     */
+    public FileLoadTask(MappedText text, Consumer<CharSequence> sink) {
+        this.text = text;
+        this.sink = sink;
+    }
+
+    @Override
+    protected MappedText call() throws Exception {
+        CharSequence block;
+
+        while (!isCancelled() && (block = text.nextBlock()) != null) {
+            for (int i = 0; i < block.length(); i += CHUNK_SIZE) {
+                // Slicing the block does not copy it.
+                chunks.put(block.subSequence(i, Math.min(block.length(), i + CHUNK_SIZE)));
+                scheduleDrain();
+            }
+
+            updateProgress(text.getIndexedBytes(), text.getFileSize());
+        }
+
+        return text;
+    }
+
+    /**
+     * Hand every remaining chunk to the sink.
+     * Must be called on the application thread, once the task has succeeded.
+     */
+    public void flush() {
+        CharSequence chunk;
+        while ((chunk = chunks.poll()) != null) {
+            sink.accept(chunk);
+        }
+    }
+
+    /**
+     * Schedule a drain on the application thread, unless one is already scheduled.
+     */
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            Platform.runLater(this::drain);
+        }
+    }
+
+    /**
+     * Hand one chunk to the sink (application thread).
+     */
+    private void drain() {
+        drainScheduled.set(false);
+
+        CharSequence chunk = chunks.poll();
+        if (chunk != null && !isCancelled()) {
+            sink.accept(chunk);
+        }
+
+        // Let other events (i.e., rendering) run before the next chunk.
+        if (!chunks.isEmpty() && !isCancelled()) {
+            scheduleDrain();
+        }
+    }
+}
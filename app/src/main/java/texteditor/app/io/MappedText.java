@@ -0,0 +1,503 @@
+package texteditor.app.io;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import texteditor.app.model.TextFilter;
+
+/**
+ * Text of a memory-mapped file, decoded lazily.
+ *
+ * The file is mapped with FileChannel.map and split into fixed-size blocks
+ * of bytes. A block is only decoded when one of its characters is needed,
+ * and only a few decoded blocks are kept in memory at a time, so heap
+ * usage stays far below the size of the file.
+ *
+ * Characters the text area would drop (see TextFilter) are dropped while
+ * decoding, so this text can be used directly as the document's original
+ * buffer.
+ *
+ * The text stays a view of the file, so a block evicted from the cache is
+ * decoded from the file again when it is next needed. Before decoding, the
+ * file's size and modification time are checked; if another program has
+ * changed the file, reading fails rather than returning different text.
+ * The mapping is held until release() is called (i.e., before the file
+ * is replaced), or until the text is garbage collected.
+ *
+ * @author Ryan Martin
+ */
+public class MappedText implements CharSequence {
+
+    // Size of a block in bytes. Block k ends at byte (k + 1) * BLOCK_SIZE.
+    private static final int BLOCK_SIZE = 1 << 18;
+
+    // Size of a mapped segment in bytes (a multiple of the block size).
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    // Bytes each segment also maps before its start, so that a block starting
+    // just before a segment boundary can still be read from one segment.
+    private static final int SEGMENT_OVERLAP = 16;
+
+    // Number of decoded blocks kept in memory.
+    private static final int CACHED_BLOCKS = 8;
+
+    // Path of the file, and the charset it was opened with.
+    private final Path path;
+    private final Charset encoding;
+
+    // Mapped segments of the file.
+    private final MappedByteBuffer[] segments;
+
+    // Size of the file in bytes, and its modification time (ms) when mapped.
+    private final long size;
+    private final long modified;
+
+    // True once the mapping has been released.
+    private boolean released = false;
+
+    // Offset of the first byte after the byte order mark (if any).
+    private final long dataStart;
+
+    // Charset used to decode the file.
+    private final Charset charset;
+
+    // Byte offset at which each indexed block starts.
+    private long[] blockByteStart = new long[16];
+
+    // Character offset at which each indexed block starts.
+    private int[] blockCharStart = new int[16];
+
+    // Number of blocks indexed so far.
+    private int indexedBlocks = 0;
+
+    // True once every block has been indexed.
+    private boolean complete = false;
+
+    // Recently decoded blocks (least recently used first).
+    private final Map<Integer, Block> cache = new LinkedHashMap<>(CACHED_BLOCKS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Block> eldest) {
+            return size() > CACHED_BLOCKS;
+        }
+    };
+
+    // Most recently used block. Read without locking for fast sequential access.
+    private volatile Block lastBlock;
+
+    /**
+     * Map a file. The contents are not read until they are needed.
+     *
+     * @param path Path of the file.
+     * @param charset Charset of the file.
+     * @throws IOException If the file cannot be mapped.
+     */
+    public MappedText(Path path, Charset charset) throws IOException {
+        this.path = path;
+        this.encoding = charset;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            this.size = channel.size();
+            this.modified = Files.getLastModifiedTime(path).toMillis();
+
+            int n = (int)((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            this.segments = new MappedByteBuffer[n];
+
+            for (int i = 0; i < n; i++) {
+                long start = Math.max(0, i * SEGMENT_SIZE - SEGMENT_OVERLAP);
+                long end = Math.min(size, (i + 1) * SEGMENT_SIZE);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            }
+        }
+
+        // Blocks are decoded independently, so a byte order mark at the start
+        // of the file has to be resolved to a fixed byte order up front.
+        Charset cs = charset;
+        long bom = 0;
+
+        if (charset.equals(StandardCharsets.UTF_16)) {
+            if (startsWith(0xFE, 0xFF)) {
+                cs = StandardCharsets.UTF_16BE;
+                bom = 2;
+            } else if (startsWith(0xFF, 0xFE)) {
+                cs = StandardCharsets.UTF_16LE;
+                bom = 2;
+            }
+        } else if (charset.name().equals("UTF-32")) {
+            if (startsWith(0x00, 0x00, 0xFE, 0xFF)) {
+                cs = Charset.forName("UTF-32BE");
+                bom = 4;
+            } else if (startsWith(0xFF, 0xFE, 0x00, 0x00)) {
+                cs = Charset.forName("UTF-32LE");
+                bom = 4;
+            }
+        }
+
+        this.charset = cs;
+        this.dataStart = bom;
+        this.blockByteStart[0] = dataStart;
+        this.complete = (dataStart == size);
+    }
+
+    /**
+     *
+     * @return Path of the file.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     *
+     * @return Charset the file was opened with.
+     */
+    public Charset getEncoding() {
+        return encoding;
+    }
+
+    /**
+     *
+     * @return Size of the file in bytes.
+     */
+    public long getFileSize() {
+        return size;
+    }
+
+    /**
+     *
+     * @return Number of characters decoded so far (without decoding any more).
+     */
+    public synchronized int getIndexedLength() {
+        return blockCharStart[indexedBlocks];
+    }
+
+    /**
+     *
+     * @return Number of bytes decoded so far (without decoding any more).
+     */
+    public synchronized long getIndexedBytes() {
+        return complete ? size : blockByteStart[indexedBlocks];
+    }
+
+    /**
+     * Release the mapping of the file, so the file can be replaced (on
+     * some platforms, a mapped file cannot be). Blocks that are not cached
+     * can no longer be read.
+     */
+    public synchronized void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+
+        // Every read of the segments holds this object's lock and checks
+        // that the mapping has not been released, so unmapping them here
+        // is safe.
+        for (int i = 0; i < segments.length; i++) {
+            unmap(segments[i]);
+            segments[i] = null;
+        }
+    }
+
+    /**
+     * Decode the next block of the file, if there is one.
+     *
+     * @return The characters of the block, or null if the whole file has
+     *         already been decoded.
+     * @throws IOException If the file is too large to be represented as
+     *         text, or cannot be read.
+     */
+    public synchronized CharSequence nextBlock() throws IOException {
+        if (complete) {
+            return null;
+        }
+
+        Block b = index();
+        return CharBuffer.wrap(b.chars).asReadOnlyBuffer();
+    }
+
+    /**
+     * Length of the text. Every block is decoded (once) to find it.
+     *
+     * @throws IllegalStateException If the file is too large to be represented
+     *         as text, or cannot be read.
+     */
+    @Override
+    public synchronized int length() {
+        try {
+            while (!complete) {
+                index();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+
+        return blockCharStart[indexedBlocks];
+    }
+
+    @Override
+    public char charAt(int index) {
+        Block b = lastBlock;
+
+        if (b == null || index < b.charStart || index >= b.charStart + b.chars.length) {
+            b = blockContaining(index);
+        }
+
+        return b.chars[index - b.charStart];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        StringBuilder sb = new StringBuilder(end - start);
+
+        int i = start;
+        while (i < end) {
+            Block b = blockContaining(i);
+            int n = Math.min(end, b.charStart + b.chars.length) - i;
+
+            sb.append(b.chars, i - b.charStart, n);
+            i += n;
+        }
+
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return subSequence(0, length()).toString();
+    }
+
+    /**
+     * Find (decoding if necessary) the block containing a character.
+     *
+     * @param index Character index.
+     * @return The block.
+     */
+    private synchronized Block blockContaining(int index) {
+        try {
+            while (!complete && index >= blockCharStart[indexedBlocks]) {
+                index();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+
+        if (index < 0 || index >= blockCharStart[indexedBlocks]) {
+            throw new IndexOutOfBoundsException("index " + index);
+        }
+
+        int k = Arrays.binarySearch(blockCharStart, 0, indexedBlocks + 1, index);
+        if (k < 0) {
+            k = -k - 2;
+        }
+
+        // Skip over blocks that decoded to no characters.
+        while (blockCharStart[k + 1] == index) {
+            k++;
+        }
+
+        Block b = cache.get(k);
+        if (b == null) {
+            try {
+                b = decode(k);
+            } catch (IOException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
+
+        lastBlock = b;
+        return b;
+    }
+
+    /**
+     * Decode the next block that has not been indexed yet, and record
+     * where it and the block after it start.
+     *
+     * @return The decoded block.
+     * @throws IOException If the file is too large to be represented as
+     *         text, or cannot be read.
+     */
+    private Block index() throws IOException {
+        int k = indexedBlocks;
+        Block b = decode(k);
+
+        long nextChars = (long)blockCharStart[k] + b.chars.length;
+        if (nextChars > Integer.MAX_VALUE) {
+            throw new IOException("File is too large to open.");
+        }
+
+        if (k + 2 > blockByteStart.length) {
+            blockByteStart = Arrays.copyOf(blockByteStart, blockByteStart.length * 2);
+            blockCharStart = Arrays.copyOf(blockCharStart, blockCharStart.length * 2);
+        }
+
+        blockByteStart[k + 1] = b.byteEnd;
+        blockCharStart[k + 1] = (int)nextChars;
+        indexedBlocks++;
+        complete = (b.byteEnd == size);
+
+        return b;
+    }
+
+    /**
+     * Decode a block. Its start must already be known.
+     *
+     * @param k Block number.
+     * @return The decoded block.
+     * @throws IOException If the mapping has been released, or the file has
+     *         changed since it was mapped.
+     */
+    private Block decode(int k) throws IOException {
+        checkUnchanged();
+
+        long start = blockByteStart[k];
+        long end = Math.min(size, (k + 1L) * BLOCK_SIZE);
+        boolean last = (end == size);
+
+        CharsetDecoder decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        ByteBuffer in = slice(start, end);
+        int from = in.position();
+        CharBuffer out = CharBuffer.allocate((int)((end - start) * (double)decoder.maxCharsPerByte()) + 2);
+
+        try {
+            decoder.decode(in, out, last);
+            if (last) {
+                decoder.flush(out);
+            }
+        } catch (InternalError e) {
+            // The file was truncated after the check.
+            throw new IOException("File has changed: " + path, e);
+        }
+
+        // An incomplete sequence at the end of the block is left in the
+        // buffer and decoded as part of the next block instead.
+        long byteEnd = last ? size : start + (in.position() - from);
+
+        out.flip();
+        char[] chars = new char[out.remaining()];
+        int n = 0;
+        while (out.hasRemaining()) {
+            char c = out.get();
+            if (TextFilter.isValid(c)) {
+                chars[n++] = c;
+            }
+        }
+
+        Block b = new Block(blockCharStart[k], (n == chars.length) ? chars : Arrays.copyOf(chars, n), byteEnd);
+        cache.put(k, b);
+
+        return b;
+    }
+
+    /**
+     * Check that the mapping can still be read, and that the file has not
+     * been changed (i.e., rewritten or truncated in place) since it was
+     * mapped.
+     *
+     * @throws IOException If it cannot be read, or has changed.
+     */
+    private void checkUnchanged() throws IOException {
+        if (released) {
+            throw new IOException("File has been closed: " + path);
+        }
+
+        if (Files.size(path) != size || Files.getLastModifiedTime(path).toMillis() != modified) {
+            throw new IOException("File has changed: " + path);
+        }
+    }
+
+    /**
+     * Unmap a buffer now, where the JVM allows it, rather than once it is
+     * garbage collected.
+     *
+     * @param buffer A mapped buffer (not a slice or duplicate).
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Unmapped once garbage collected instead.
+        }
+    }
+
+    /**
+     * Get a range of the file as a byte buffer.
+     *
+     * @param start Start offset (inclusive).
+     * @param end End offset (exclusive).
+     * @return Buffer over the range.
+     */
+    private ByteBuffer slice(long start, long end) {
+        // Blocks end on a block boundary (and so never cross the end of a 
+        // segment), but may start a few bytes before the previous boundary, 
+        // which the overlap at the start of each segment covers. 
+        int seg = (int)((end - 1) / SEGMENT_SIZE);
+
+        long segStart = Math.max(0, seg * SEGMENT_SIZE - SEGMENT_OVERLAP);
+        ByteBuffer buf = segments[seg].duplicate();
+        buf.position((int)(start - segStart));
+        buf.limit((int)(end - segStart));
+
+        return buf;
+    }
+
+    /**
+     * Check the first bytes of the file.
+     *
+     * @param bytes Expected bytes.
+     * @return True if the file starts with the bytes.
+     */
+    private boolean startsWith(int... bytes) {
+        if (size < bytes.length) {
+            return false;
+        }
+
+        for (int i = 0; i < bytes.length; i++) {
+            if ((segments[0].get(i) & 0xFF) != bytes[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * A decoded block. Immutable.
+     */
+    private static final class Block {
+
+        // Character offset of the block.
+        final int charStart;
+
+        // Decoded (and filtered) characters.
+        final char[] chars;
+
+        // Byte offset at which the next block starts.
+        final long byteEnd;
+
+        Block(int charStart, char[] chars, long byteEnd) {
+            this.charStart = charStart;
+            this.chars = chars;
+            this.byteEnd = byteEnd;
+        }
+    }
+}
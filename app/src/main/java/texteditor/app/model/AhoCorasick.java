@@ -0,0 +1,174 @@
+package texteditor.app.model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aho-Corasick automaton matching a set of patterns at once.
+ *
+ * Text is fed in one character at a time with next(). After each
+ * character, getMatch() gives the longest pattern ending there, so every
+ * pattern is found in a single pass over the text, however many
+ * patterns there are.
+ *
+ * States are numbered from 0 (the root). Each state's transitions are
+ * kept in sorted arrays and searched with a binary search.
+ *
+ * @author Ryan Martin
+ */
+public class AhoCorasick {
+
+    // The patterns.
+    private final String[] patterns;
+
+    // Transition characters of each state (sorted).
+    private final char[][] keys;
+
+    // Target of each transition.
+    private final int[][] targets;
+
+    // Failure link of each state: the state for the longest proper suffix
+    // of its text that is also a prefix of some pattern.
+    private final int[] fail;
+
+    // Index of the longest pattern ending at each state, or -1.
+    private final int[] match;
+
+    // Length of the longest pattern.
+    private final int maxLength;
+
+    /**
+     * Build the automaton.
+     *
+     * @param patterns The patterns (not empty).
+     */
+    public AhoCorasick(List<String> patterns) {
+        this.patterns = patterns.toArray(new String[0]);
+
+        // Build the trie.
+        List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+        List<Integer> terminal = new ArrayList<>();
+        trie.add(new TreeMap<>());
+        terminal.add(-1);
+
+        int longest = 0;
+        for (int p = 0; p < this.patterns.length; p++) {
+            String pattern = this.patterns[p];
+            if (pattern.isEmpty()) {
+                throw new IllegalArgumentException("Empty pattern");
+            }
+
+            int state = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                Integer next = trie.get(state).get(pattern.charAt(i));
+                if (next == null) {
+                    next = trie.size();
+                    trie.get(state).put(pattern.charAt(i), next);
+                    trie.add(new TreeMap<>());
+                    terminal.add(-1);
+                }
+                state = next;
+            }
+
+            terminal.set(state, p);
+            longest = Math.max(longest, pattern.length());
+        }
+
+        int n = trie.size();
+        this.maxLength = longest;
+        this.keys = new char[n][];
+        this.targets = new int[n][];
+        this.fail = new int[n];
+        this.match = new int[n];
+
+        for (int s = 0; s < n; s++) {
+            TreeMap<Character, Integer> edges = trie.get(s);
+            keys[s] = new char[edges.size()];
+            targets[s] = new int[edges.size()];
+
+            int i = 0;
+            for (Map.Entry<Character, Integer> e : edges.entrySet()) {
+                keys[s][i] = e.getKey();
+                targets[s][i] = e.getValue();
+                i++;
+            }
+        }
+
+        // Compute the failure links breadth first, so a state's failure
+        // link is always complete before its children are visited.
+        Deque<Integer> queue = new ArrayDeque<>();
+        fail[0] = 0;
+        match[0] = -1;
+
+        for (int child : targets[0]) {
+            fail[child] = 0;
+            match[child] = terminal.get(child);
+            queue.add(child);
+        }
+
+        while (!queue.isEmpty()) {
+            int s = queue.poll();
+
+            for (int i = 0; i < keys[s].length; i++) {
+                int child = targets[s][i];
+                fail[child] = next(fail[s], keys[s][i]);
+
+                // A state's own pattern is longer than any suffix's.
+                int own = terminal.get(child);
+                match[child] = (own >= 0) ? own : match[fail[child]];
+
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     *
+     * @return Length of the longest pattern.
+     */
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     *
+     * @param idx Pattern index.
+     * @return The pattern.
+     */
+    public String getPattern(int idx) {
+        return patterns[idx];
+    }
+
+    /**
+     * Feed a character to the automaton.
+     *
+     * @param state Current state (0 to start).
+     * @param c Next character of the text.
+     * @return The new state.
+     */
+    public int next(int state, char c) {
+        while (true) {
+            int i = Arrays.binarySearch(keys[state], c);
+            if (i >= 0) {
+                return targets[state][i];
+            } else if (state == 0) {
+                return 0;
+            }
+            state = fail[state];
+        }
+    }
+
+    /**
+     *
+     * @param state A state.
+     * @return Index of the longest pattern ending in the state, or -1.
+     */
+    public int getMatch(int state) {
+        return match[state];
+    }
+}
@@ -0,0 +1,278 @@
+package texteditor.app.model;
+
+import java.util.Random;
+
+/**
+ * Set of positions in a document (anchors), kept up to date as the
+ * document is edited.
+ *
+ * The anchors are kept in a treap ordered by offset. An edit moves every
+ * anchor after it, and collapses every anchor inside the replaced text to
+ * its start, by tagging two subtrees (an "add" tag and a "set" tag). Tags
+ * are only pushed down to the nodes below when they are next visited, so
+ * an edit costs O(log n) however many anchors there are. Each node also
+ * links to its parent, so an anchor's offset is found by pushing the tags
+ * down the path from the root to it, also in O(log n).
+ *
+ * Anchors have left gravity: text inserted exactly at an anchor is
+ * inserted after it.
+ *
+ * @author Ryan Martin
+ */
+public class AnchorTree {
+
+    /**
+     * An anchor. Only this tree can read or move it.
+     */
+    public static final class Handle {
+
+        // Offset (only up to date once the tags above it are pushed down).
+        private int offset;
+
+        // Pending tags for the children.
+        private int addTag = 0;
+        private boolean hasSetTag = false;
+        private int setTag = 0;
+
+        // Heap priority.
+        private final int priority;
+
+        // Tree links.
+        private Handle parent = null;
+        private Handle left = null;
+        private Handle right = null;
+
+        // True once removed from the tree.
+        private boolean removed = false;
+
+        private Handle(int offset, int priority) {
+            this.offset = offset;
+            this.priority = priority;
+        }
+    }
+
+    // Root of the treap.
+    private Handle root = null;
+
+    // Number of anchors.
+    private int size = 0;
+
+    // Node priorities.
+    private final Random random = new Random();
+
+    /**
+     *
+     * @return Number of anchors.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Add an anchor.
+     *
+     * @param offset Offset of the anchor.
+     * @return The anchor.
+     */
+    public Handle add(int offset) {
+        Handle h = new Handle(offset, random.nextInt());
+
+        Handle[] parts = split(root, offset + 1);
+        root = merge(merge(parts[0], h), parts[1]);
+        size++;
+
+        return h;
+    }
+
+    /**
+     * Get the current offset of an anchor.
+     *
+     * @param h The anchor.
+     * @return Its offset, or -1 if it has been removed.
+     */
+    public int getOffset(Handle h) {
+        if (h.removed) {
+            return -1;
+        }
+
+        pushPath(h);
+        return h.offset;
+    }
+
+    /**
+     * Remove an anchor. Removing it again has no effect.
+     *
+     * @param h The anchor.
+     */
+    public void remove(Handle h) {
+        if (h.removed) {
+            return;
+        }
+
+        pushPath(h);
+        push(h);
+
+        Handle parent = h.parent;
+        Handle replacement = merge(h.left, h.right);
+
+        if (replacement != null) {
+            replacement.parent = parent;
+        }
+
+        if (parent == null) {
+            root = replacement;
+        } else if (parent.left == h) {
+            parent.left = replacement;
+        } else {
+            parent.right = replacement;
+        }
+
+        h.removed = true;
+        h.parent = h.left = h.right = null;
+        size--;
+    }
+
+    /**
+     * Update the anchors for an edit of the document.
+     *
+     * @param start Start of the replaced range (inclusive).
+     * @param end End of the replaced range (exclusive).
+     * @param insertedLength Length of the replacement text.
+     */
+    public void replace(int start, int end, int insertedLength) {
+        // Anchors at or before the start stay where they are.
+        Handle[] parts = split(root, start + 1);
+        // Anchors inside the replaced text move to its start, and
+        // anchors after it move with the text.
+        Handle[] rest = split(parts[1], end);
+
+        set(rest[0], start);
+        add(rest[1], insertedLength - (end - start));
+
+        root = merge(merge(parts[0], rest[0]), rest[1]);
+    }
+
+    /**
+     * Push the tags down the path from the root to a node, so that the
+     * node's offset is up to date.
+     *
+     * @param h The node.
+     */
+    private static void pushPath(Handle h) {
+        if (h.parent != null) {
+            pushPath(h.parent);
+            push(h.parent);
+        }
+    }
+
+    /**
+     * Split a subtree by offset.
+     *
+     * @param n Root of the subtree.
+     * @param key The offset.
+     * @return The anchors before the offset, and the rest.
+     */
+    private static Handle[] split(Handle n, int key) {
+        if (n == null) {
+            return new Handle[] { null, null };
+        }
+
+        push(n);
+
+        Handle[] parts;
+        if (n.offset < key) {
+            parts = split(n.right, key);
+            n.right = parts[0];
+            link(n, parts[0]);
+            parts[0] = n;
+        } else {
+            parts = split(n.left, key);
+            n.left = parts[1];
+            link(n, parts[1]);
+            parts[1] = n;
+        }
+
+        n.parent = null;
+        return parts;
+    }
+
+    /**
+     * Merge two subtrees. Every anchor in the first must be at or before
+     * every anchor in the second.
+     *
+     * @param a First subtree.
+     * @param b Second subtree.
+     * @return Root of the merged subtree.
+     */
+    private static Handle merge(Handle a, Handle b) {
+        if (a == null) {
+            return b;
+        } else if (b == null) {
+            return a;
+        }
+
+        if (a.priority > b.priority) {
+            push(a);
+            a.right = merge(a.right, b);
+            link(a, a.right);
+            a.parent = null;
+            return a;
+        } else {
+            push(b);
+            b.left = merge(a, b.left);
+            link(b, b.left);
+            b.parent = null;
+            return b;
+        }
+    }
+
+    private static void link(Handle parent, Handle child) {
+        if (child != null) {
+            child.parent = parent;
+        }
+    }
+
+    /**
+     * Move every anchor in a subtree to one offset.
+     */
+    private static void set(Handle n, int offset) {
+        if (n != null) {
+            n.offset = offset;
+            n.hasSetTag = true;
+            n.setTag = offset;
+            n.addTag = 0;
+        }
+    }
+
+    /**
+     * Move every anchor in a subtree by a distance.
+     */
+    private static void add(Handle n, int delta) {
+        if (n != null && delta != 0) {
+            n.offset += delta;
+
+            if (n.hasSetTag) {
+                n.setTag += delta;
+            } else {
+                n.addTag += delta;
+            }
+        }
+    }
+
+    /**
+     * Pass a node's tags on to its children.
+     */
+    private static void push(Handle n) {
+        if (n.hasSetTag) {
+            set(n.left, n.setTag);
+            set(n.right, n.setTag);
+            n.hasSetTag = false;
+        }
+
+        if (n.addTag != 0) {
+            add(n.left, n.addTag);
+            add(n.right, n.addTag);
+            n.addTag = 0;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package texteditor.app.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Set of ranges of a document (i.e., highlights), kept up to date as the
+ * document is edited.
+ *
+ * The ranges are kept in a treap ordered by start offset, with each node
+ * also holding the largest end offset in its subtree, so the ranges
+ * overlapping any part of the document are found in O(log n + k) for k
+ * ranges. An edit moves every range after it by shifting a single subtree
+ * (the shift is only pushed down to the nodes below when they are next
+ * visited), so it costs O(log n) plus the number of ranges overlapping the
+ * edit, however many ranges there are.
+ *
+ * @author Ryan Martin
+ */
+public class IntervalTree {
+
+    /**
+     * Receives ranges from a query.
+     */
+    public interface RangeConsumer {
+
+        /**
+         * @param start Start of the range (inclusive).
+         * @param end End of the range (exclusive).
+         */
+        void accept(int start, int end);
+    }
+
+    // Root of the treap.
+    private Node root = null;
+
+    // Number of ranges.
+    private int size = 0;
+
+    // Node priorities.
+    private final Random random = new Random();
+
+    /**
+     *
+     * @return Number of ranges.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Remove every range.
+     */
+    public void clear() {
+        root = null;
+        size = 0;
+    }
+
+    /**
+     * Add a range. Empty ranges are ignored.
+     *
+     * @param start Start of the range (inclusive).
+     * @param end End of the range (exclusive).
+     */
+    public void add(int start, int end) {
+        if (start >= end) {
+            return;
+        }
+
+        Node[] parts = split(root, start);
+        root = merge(merge(parts[0], new Node(start, end, random.nextInt())), parts[1]);
+        size++;
+    }
+
+    /**
+     * Update the ranges for an edit of the document. Ranges after the
+     * replaced text move with it. Ranges starting or ending inside it
+     * shrink to exclude it and the replacement, while a range spanning
+     * the whole of it grows or shrinks to cover the replacement. Ranges
+     * left empty are removed.
+     *
+     * @param start Start of the replaced range (inclusive).
+     * @param end End of the replaced range (exclusive).
+     * @param insertedLength Length of the replacement text.
+     */
+    public void replace(int start, int end, int insertedLength) {
+        int delta = insertedLength - (end - start);
+
+        // Ranges starting after the replaced text only move.
+        Node[] parts = split(root, end);
+        shift(parts[1], delta);
+
+        // Ranges starting before it only change if they end inside or after it.
+        List<int[]> overlapping = new ArrayList<>();
+        Node before = removeOverlapping(parts[0], start, overlapping);
+
+        root = merge(before, parts[1]);
+        size -= overlapping.size();
+
+        for (int[] r : overlapping) {
+            int s = (r[0] < start) ? r[0] : (r[0] < end) ? start + insertedLength : r[0] + delta;
+            int e = (r[1] <= start) ? r[1] : (r[1] <= end) ? start : r[1] + delta;
+
+            add(s, e);
+        }
+    }
+
+    /**
+     * Find the ranges overlapping part of the document, in order of their
+     * start offsets.
+     *
+     * @param from Start of the part (inclusive).
+     * @param to End of the part (exclusive).
+     * @param consumer Receives each range.
+     */
+    public void query(int from, int to, RangeConsumer consumer) {
+        query(root, from, to, consumer);
+    }
+
+    private static void query(Node n, int from, int to, RangeConsumer consumer) {
+        if (n == null || n.maxEnd <= from) {
+            return;
+        }
+
+        push(n);
+        query(n.left, from, to, consumer);
+
+        if (n.start >= to) {
+            return;
+        }
+
+        if (n.end > from) {
+            consumer.accept(n.start, n.end);
+        }
+
+        query(n.right, from, to, consumer);
+    }
+
+    /**
+     * Remove the ranges ending after an offset from a subtree.
+     *
+     * @param n Root of the subtree.
+     * @param offset The offset.
+     * @param removed Receives the removed ranges.
+     * @return New root of the subtree.
+     */
+    private static Node removeOverlapping(Node n, int offset, List<int[]> removed) {
+        if (n == null || n.maxEnd <= offset) {
+            return n;
+        }
+
+        push(n);
+        n.left = removeOverlapping(n.left, offset, removed);
+        n.right = removeOverlapping(n.right, offset, removed);
+
+        if (n.end > offset) {
+            removed.add(new int[] { n.start, n.end });
+            return merge(n.left, n.right);
+        }
+
+        update(n);
+        return n;
+    }
+
+    /**
+     * Split a subtree by start offset.
+     *
+     * @param n Root of the subtree.
+     * @param key The offset.
+     * @return The ranges starting before the offset, and the rest.
+     */
+    private static Node[] split(Node n, int key) {
+        if (n == null) {
+            return new Node[] { null, null };
+        }
+
+        push(n);
+
+        if (n.start < key) {
+            Node[] parts = split(n.right, key);
+            n.right = parts[0];
+            update(n);
+            parts[0] = n;
+            return parts;
+        } else {
+            Node[] parts = split(n.left, key);
+            n.left = parts[1];
+            update(n);
+            parts[1] = n;
+            return parts;
+        }
+    }
+
+    /**
+     * Merge two subtrees. Every range in the first must start at or
+     * before every range in the second.
+     *
+     * @param a First subtree.
+     * @param b Second subtree.
+     * @return Root of the merged subtree.
+     */
+    private static Node merge(Node a, Node b) {
+        if (a == null) {
+            return b;
+        } else if (b == null) {
+            return a;
+        }
+
+        if (a.priority > b.priority) {
+            push(a);
+            a.right = merge(a.right, b);
+            update(a);
+            return a;
+        } else {
+            push(b);
+            b.left = merge(a, b.left);
+            update(b);
+            return b;
+        }
+    }
+
+    /**
+     * Move every range in a subtree.
+     *
+     * @param n Root of the subtree.
+     * @param delta Distance to move.
+     */
+    private static void shift(Node n, int delta) {
+        if (n != null && delta != 0) {
+            n.start += delta;
+            n.end += delta;
+            n.maxEnd += delta;
+            n.pending += delta;
+        }
+    }
+
+    /**
+     * Pass a node's pending shift on to its children.
+     *
+     * @param n The node.
+     */
+    private static void push(Node n) {
+        if (n.pending != 0) {
+            shift(n.left, n.pending);
+            shift(n.right, n.pending);
+            n.pending = 0;
+        }
+    }
+
+    /**
+     * Recompute a node's largest end offset.
+     *
+     * @param n The node.
+     */
+    private static void update(Node n) {
+        int max = n.end;
+
+        if (n.left != null) {
+            max = Math.max(max, n.left.maxEnd);
+        }
+        if (n.right != null) {
+            max = Math.max(max, n.right.maxEnd);
+        }
+
+        n.maxEnd = max;
+    }
+
+    /**
+     * A range, and the root of the subtree of ranges around it.
+     */
+    private static final class Node {
+
+        // The range (already shifted).
+        int start;
+        int end;
+
+        // Largest end offset in the subtree (already shifted).
+        int maxEnd;
+
+        // Shift not yet applied to the children.
+        int pending = 0;
+
+        // Heap priority.
+        final int priority;
+
+        // Children.
+        Node left = null;
+        Node right = null;
+
+        Node(int start, int end, int priority) {
+            this.start = start;
+            this.end = end;
+            this.maxEnd = end;
+            this.priority = priority;
+        }
+    }
+}
@@ -60,6 +60,41 @@ public class KeyCombo {
         return (charMatch && altMatch && ctrlMatch && shiftMatch);
     }
 
+    /**
+     * Get the modifiers of this combination as a bitmask, with one bit 
+     * per modifier (1 << ordinal). 
+     * 
+     * @return The bitmask. 
+     */
+    public int getModifierMask() {
+        int mask = 0; 
+
+        for (KeyModifier m : modifiers) {
+            mask |= 1 << m.ordinal(); 
+        }
+
+        return mask; 
+    }
+
+    /**
+     * Get the bitmask (as returned by getModifierMask) for the 
+     * conditions of a key event. 
+     * 
+     * @param altDown Is the ALT key down?
+     * @param ctrlDown Is the CTRL key down?
+     * @param shiftDown Is the SHIFT key down?
+     * @return The bitmask. 
+     */
+    public static int modifierMask(boolean altDown, boolean ctrlDown, boolean shiftDown) {
+        int mask = 0; 
+
+        if (altDown) mask |= 1 << KeyModifier.KEY_ALT.ordinal(); 
+        if (ctrlDown) mask |= 1 << KeyModifier.KEY_CTRL.ordinal(); 
+        if (shiftDown) mask |= 1 << KeyModifier.KEY_SHIFT.ordinal(); 
+
+        return mask; 
+    }
+
     /**
      * Add a key modifier to this combination.
      * 
@@ -71,6 +106,14 @@ public class KeyCombo {
         }
     }
 
+    /**
+     * 
+     * @return The letter of the combination. 
+     */
+    public char getLetter() {
+        return letter; 
+    }
+
     /**
      * Set the letter for the combination. 
      * 
@@ -0,0 +1,98 @@
+package texteditor.app.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Key map compiled into a lookup table. 
+ * 
+ * The action for a key combination is found by indexing a table by the 
+ * letter (A-Z) and the modifier bitmask of the combination (see 
+ * KeyCombo.getModifierMask), so a key press takes constant time however 
+ * many mappings there are. 
+ * 
+ * If a combination is mapped more than once, the first mapping is used, 
+ * and the others are listed as duplicates or conflicts. 
+ * 
+ * @author Ryan Martin
+ */
+public class KeyMapTable {
+
+    // Number of letters (A-Z). 
+    private static final int LETTERS = 26;
+
+    // Number of modifier combinations. 
+    private static final int MASKS = 1 << KeyModifier.values().length;
+
+    // Mapping for each letter and modifier bitmask, or null. 
+    private final KeyMapping[][] table = new KeyMapping[LETTERS][MASKS];
+
+    // Mappings of combinations that were already mapped (ignored). 
+    private final List<String> conflicts = new ArrayList<>();
+
+    /**
+     * Compile a key map. Where a key combination is mapped more than once, 
+     * the first mapping is used (see getConflicts). 
+     * 
+     * @param keyMap List of key mappings. 
+     */
+    public KeyMapTable(List<KeyMapping> keyMap) {
+        for (KeyMapping m : keyMap) {
+            KeyCombo combo = m.getCombo();
+            int letter = index(combo.getLetter());
+
+            if (letter < 0) {
+                throw new IllegalArgumentException("Not a letter: " + combo);
+            }
+
+            KeyMapping existing = table[letter][combo.getModifierMask()];
+
+            if (existing == null) {
+                table[letter][combo.getModifierMask()] = m;
+            } else {
+                // The same action mapped twice is a duplicate; anything 
+                // else is a conflict. 
+                boolean duplicate = existing.getAction().toString().equals(m.getAction().toString());
+
+                conflicts.add(duplicate ? "Duplicate: " + existing : "Conflict: " + existing + " / " + m);
+            }
+        }
+    }
+
+    /**
+     * 
+     * @return Duplicate and conflicting mappings, which were ignored in 
+     *         favour of the first mapping of their combination. 
+     */
+    public List<String> getConflicts() {
+        return Collections.unmodifiableList(conflicts);
+    }
+
+    /**
+     * Look up the action for a key press. 
+     * 
+     * @param c The letter. 
+     * @param modifierMask Bitmask of the modifiers held down (see KeyCombo.modifierMask). 
+     * @return The action, or null if the combination is not mapped. 
+     */
+    public KeyAction get(char c, int modifierMask) {
+        int letter = index(c);
+        if (letter < 0) {
+            return null;
+        }
+
+        KeyMapping m = table[letter][modifierMask];
+        return (m == null) ? null : m.getAction();
+    }
+
+    /**
+     * 
+     * @param c A character. 
+     * @return Table index of the letter, or -1 if it is not a letter (A-Z). 
+     */
+    private static int index(char c) {
+        int i = Character.toUpperCase(c) - 'A';
+        return (i >= 0 && i < LETTERS) ? i : -1;
+    }
+}
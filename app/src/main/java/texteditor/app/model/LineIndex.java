@@ -0,0 +1,115 @@
+package texteditor.app.model;
+
+import java.util.Arrays;
+
+/**
+ * Index of the offsets at which lines start, kept up to date as the
+ * document is edited.
+ *
+ * The start offsets of every line but the first are kept in an
+ * OffsetBuffer, so edits close together (i.e., typing) take constant
+ * time and lookups are binary searches.
+ *
+ * Lines are separated by '\n' only (the text area drops '\r').
+ *
+ * @author Ryan Martin
+ */
+public class LineIndex {
+
+    // Largest buffer for line starts kept between edits.
+    private static final int MAX_RETAINED = 1 << 16;
+
+    // Start offsets of lines 1 onwards.
+    private final OffsetBuffer starts = new OffsetBuffer();
+
+    // Length of the document.
+    private int length = 0;
+
+    // Line starts in the text of the current edit.
+    private int[] added = new int[16];
+
+    /**
+     * Construct an index for an empty document.
+     */
+    public LineIndex() {
+    }
+
+    /**
+     * Rebuild the index for new text.
+     *
+     * @param text The whole text of the document.
+     */
+    public void reset(CharSequence text) {
+        starts.clear();
+        length = 0;
+
+        replace(0, 0, text);
+    }
+
+    /**
+     * Update the index for an edit of the document.
+     *
+     * @param start Start of the replaced range (inclusive).
+     * @param end End of the replaced range (exclusive).
+     * @param text Replacement text.
+     */
+    public void replace(int start, int end, CharSequence text) {
+        if (start < 0 || end < start || end > length) {
+            throw new IndexOutOfBoundsException("range " + start + " to " + end + ", length " + length);
+        }
+
+        int count = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                if (count == added.length) {
+                    added = Arrays.copyOf(added, count * 2);
+                }
+                added[count++] = start + i + 1;
+            }
+        }
+
+        // Lines starting in (start, end] start after a removed newline.
+        int delta = text.length() - (end - start);
+        starts.replace(start + 1, end + 1, delta, added, count);
+        length += delta;
+
+        // Don't hold on to a large buffer after rebuilding the index.
+        if (added.length > MAX_RETAINED) {
+            added = new int[16];
+        }
+    }
+
+    /**
+     *
+     * @return Number of lines (at least 1).
+     */
+    public int getLineCount() {
+        return starts.size() + 1;
+    }
+
+    /**
+     *
+     * @param line Line number (0 <= line < getLineCount()).
+     * @return Offset at which the line starts.
+     */
+    public int getLineStart(int line) {
+        if (line < 0 || line > starts.size()) {
+            throw new IndexOutOfBoundsException("line " + line);
+        }
+
+        return (line == 0) ? 0 : starts.get(line - 1);
+    }
+
+    /**
+     *
+     * @param pos Offset (0 <= pos <= length).
+     * @return Number of the line containing the offset.
+     */
+    public int getLineOfOffset(int pos) {
+        if (pos < 0 || pos > length) {
+            throw new IndexOutOfBoundsException("offset " + pos);
+        }
+
+        return starts.countBelow(pos + 1);
+    }
+}
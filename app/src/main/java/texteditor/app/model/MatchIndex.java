@@ -0,0 +1,144 @@
+package texteditor.app.model;
+
+import java.util.Arrays;
+
+/**
+ * Index of every occurrence of a search term in a document, kept up to
+ * date as the document is edited.
+ *
+ * The document is scanned once when the index is built. After that, an
+ * edit only removes the occurrences overlapping it and rescans the text
+ * around it, so find-next, find-previous and count take O(log n) however
+ * large the document is. Occurrences may overlap.
+ *
+ * @author Ryan Martin
+ */
+public class MatchIndex {
+
+    // Number of characters scanned at a time.
+    private static final int SCAN_CHUNK = 1 << 20;
+
+    // Largest buffer for occurrences kept between edits.
+    private static final int MAX_RETAINED = 1 << 16;
+
+    // The search term.
+    private final String term;
+
+    // Start offsets of the occurrences.
+    private final OffsetBuffer matches = new OffsetBuffer();
+
+    // Occurrences found by a scan.
+    private int[] found = new int[16];
+    private int foundCount = 0;
+
+    /**
+     * Build the index.
+     *
+     * @param term The search term (not empty).
+     * @param text The whole text of the document.
+     */
+    public MatchIndex(String term, CharSequence text) {
+        if (term.isEmpty()) {
+            throw new IllegalArgumentException("Empty search term");
+        }
+
+        this.term = term;
+
+        scan(text, 0, text.length());
+        matches.replace(0, 0, 0, found, foundCount);
+        found = new int[16];
+    }
+
+    /**
+     *
+     * @return The search term.
+     */
+    public String getTerm() {
+        return term;
+    }
+
+    /**
+     * Update the index for an edit of the document.
+     *
+     * @param text The whole text of the document, after the edit.
+     * @param start Start of the replaced range (inclusive).
+     * @param end End of the replaced range (exclusive, before the edit).
+     * @param insertedLength Length of the replacement text.
+     */
+    public void replace(CharSequence text, int start, int end, int insertedLength) {
+        // Occurrences starting less than a term length before the edit
+        // overlap it, as may new ones.
+        int from = Math.max(0, start - term.length() + 1);
+        int newEnd = start + insertedLength;
+
+        scan(text, from, newEnd);
+        matches.replace(from, end, newEnd - end, found, foundCount);
+
+        // Don't hold on to a large buffer after a large edit.
+        if (found.length > MAX_RETAINED) {
+            found = new int[16];
+        }
+    }
+
+    /**
+     *
+     * @return Number of occurrences.
+     */
+    public int count() {
+        return matches.size();
+    }
+
+    /**
+     *
+     * @param from Start index.
+     * @return Index of the first occurrence starting at or after the
+     *         index, or -1 if there is none.
+     */
+    public int next(int from) {
+        int i = matches.countBelow(from);
+        return (i < matches.size()) ? matches.get(i) : -1;
+    }
+
+    /**
+     *
+     * @param before End index.
+     * @return Index of the last occurrence starting before the index,
+     *         or -1 if there is none.
+     */
+    public int previous(int before) {
+        int i = matches.countBelow(before) - 1;
+        return (i >= 0) ? matches.get(i) : -1;
+    }
+
+    /**
+     * Find the occurrences starting in a range of the text. The result is
+     * left in found.
+     *
+     * @param text The text.
+     * @param from Start of the range (inclusive).
+     * @param to End of the range (exclusive).
+     */
+    private void scan(CharSequence text, int from, int to) {
+        foundCount = 0;
+
+        int m = term.length();
+        int limit = Math.min(to, text.length() - m + 1);
+
+        // Chunks overlap by a term length, so occurrences crossing a
+        // chunk boundary are still found.
+        for (int chunkStart = from; chunkStart < limit; chunkStart += SCAN_CHUNK) {
+            int chunkEnd = Math.min(limit, chunkStart + SCAN_CHUNK);
+            String chunk = text.subSequence(chunkStart, chunkEnd + m - 1).toString();
+
+            int idx = chunk.indexOf(term);
+            while (idx != -1 && chunkStart + idx < chunkEnd) {
+                if (foundCount == found.length) {
+                    found = Arrays.copyOf(found, foundCount * 2);
+                }
+                found[foundCount++] = chunkStart + idx;
+
+                idx = chunk.indexOf(term, idx + 1);
+            }
+        }
+    }
+}
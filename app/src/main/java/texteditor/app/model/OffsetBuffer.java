@@ -0,0 +1,140 @@
+package texteditor.app.model;
+
+import java.util.Arrays;
+
+/**
+ * Sorted list of offsets into a document, kept up to date as the
+ * document is edited (i.e., line starts or search matches).
+ *
+ * The offsets are kept in a gap buffer. Offsets before the gap are stored
+ * as is, and offsets after the gap are stored relative to a base that
+ * moves with every edit, so an edit does not have to update the offsets
+ * after it. Only the offsets between the previous edit and this one are
+ * touched when the gap moves, so edits close together (i.e., typing)
+ * take constant time. Lookups are binary searches.
+ *
+ * @author Ryan Martin
+ */
+public class OffsetBuffer {
+
+    // Initial capacity of the buffer.
+    private static final int INITIAL_CAPACITY = 64;
+
+    // The offsets, with a gap.
+    private int[] offsets = new int[INITIAL_CAPACITY];
+
+    // Gap position (inclusive start, exclusive end).
+    private int gapStart = 0;
+    private int gapEnd = INITIAL_CAPACITY;
+
+    // Value added to the offsets stored after the gap.
+    private int base = 0;
+
+    /**
+     * Remove every offset.
+     */
+    public void clear() {
+        offsets = new int[INITIAL_CAPACITY];
+        gapStart = 0;
+        gapEnd = offsets.length;
+        base = 0;
+    }
+
+    /**
+     * Update the offsets for an edit. Offsets in [from, to) are removed,
+     * offsets from to onwards are moved by delta, and new offsets are
+     * inserted in their place.
+     *
+     * @param from Start of the range of removed offsets (inclusive).
+     * @param to End of the range of removed offsets (exclusive).
+     * @param delta Distance later offsets move.
+     * @param added New offsets, sorted, each at least the last offset
+     *        before from and less than to + delta.
+     * @param count Number of new offsets.
+     */
+    public void replace(int from, int to, int delta, int[] added, int count) {
+        int first = countBelow(from);
+        int last = Math.max(first, countBelow(to));
+
+        moveGap(first);
+        gapEnd += last - first;
+        base += delta;
+
+        for (int i = 0; i < count; i++) {
+            if (gapStart == gapEnd) {
+                grow();
+            }
+            offsets[gapStart++] = added[i];
+        }
+    }
+
+    /**
+     *
+     * @return Number of offsets.
+     */
+    public int size() {
+        return offsets.length - (gapEnd - gapStart);
+    }
+
+    /**
+     *
+     * @param i Index (0 <= i < size()).
+     * @return The offset.
+     */
+    public int get(int i) {
+        return (i < gapStart) ? offsets[i] : offsets[i + gapEnd - gapStart] + base;
+    }
+
+    /**
+     * Count the offsets before a position (binary search).
+     *
+     * @param pos Position.
+     * @return Number of offsets less than the position.
+     */
+    public int countBelow(int pos) {
+        int lo = 0;
+        int hi = size();
+
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (get(mid) < pos) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        return lo;
+    }
+
+    /**
+     * Move the gap so that it starts at an index.
+     *
+     * @param i Index of an offset.
+     */
+    private void moveGap(int i) {
+        while (gapStart > i) {
+            gapStart--;
+            gapEnd--;
+            offsets[gapEnd] = offsets[gapStart] - base;
+        }
+
+        while (gapStart < i) {
+            offsets[gapStart] = offsets[gapEnd] + base;
+            gapStart++;
+            gapEnd++;
+        }
+    }
+
+    /**
+     * Double the capacity of the buffer (the gap must be empty).
+     */
+    private void grow() {
+        int[] old = offsets;
+        int after = old.length - gapEnd;
+
+        offsets = Arrays.copyOf(old, old.length * 2);
+        gapEnd = offsets.length - after;
+        System.arraycopy(old, gapStart, offsets, gapEnd, after);
+    }
+}
@@ -0,0 +1,607 @@
+package texteditor.app.model;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Piece table document model.
+ *
+ * The text is never stored as a single string. Instead the document is
+ * described by a list of pieces, each referring to a span of either the
+ * original (read-only) text or an append-only buffer of added text.
+ * Inserts and deletes only split or trim the pieces around the edit, so
+ * the cost of an edit is proportional to the edit and the number of
+ * pieces, not to the size of the document.
+ *
+ * Consecutive inserts (i.e., typing) extend the previous piece rather than
+ * creating a new one, which keeps the piece list short.
+ *
+ * Text is never modified once it is in either buffer, so an immutable
+ * snapshot of the document only needs a copy of the piece list. Snapshots
+ * can be read from any thread while the document continues to change, and
+ * their text can be read in place, as read-only views of the buffers.
+ *
+ * @author Ryan Martin
+ */
+public class PieceTable implements CharSequence {
+
+    // The original text (never modified).
+    private final CharSequence original;
+
+    // Append-only buffer of all text inserted since construction.
+    private final AddBuffer added;
+
+    // Pieces making up the document, in order.
+    private final List<Piece> pieces;
+
+    // Total length of the document.
+    private int length;
+
+    // True if this is a snapshot.
+    private final boolean readOnly;
+
+    // Index of the most recently located piece (high 32 bits) and its start
+    // offset (low 32 bits), kept in one volatile field so that threads
+    // sharing a snapshot always read a consistent pair. A cursor left by
+    // another thread is only a starting point for the next lookup, so it
+    // does not need to be the latest. Makes sequential access (i.e.,
+    // charAt in a loop) amortised O(1).
+    private volatile long cursor = 0;
+
+    /**
+     * Construct an empty document.
+     */
+    public PieceTable() {
+        this("");
+    }
+
+    /**
+     * Construct a document over existing text. The text is not copied.
+     *
+     * @param original Original text.
+     */
+    public PieceTable(CharSequence original) {
+        this.original = original;
+        this.added = new AddBuffer();
+        this.pieces = new ArrayList<>();
+        this.length = original.length();
+        this.readOnly = false;
+
+        if (length > 0) {
+            pieces.add(new Piece(false, 0, length));
+        }
+    }
+
+    /**
+     * Construct a snapshot.
+     *
+     * @param original Original text.
+     * @param added Frozen view of the add buffer.
+     * @param pieces Copy of the piece list.
+     * @param length Length of the document.
+     */
+    private PieceTable(CharSequence original, AddBuffer added, List<Piece> pieces, int length) {
+        this.original = original;
+        this.added = added;
+        this.pieces = pieces;
+        this.length = length;
+        this.readOnly = true;
+    }
+
+    /**
+     * Take an immutable snapshot of the document. The snapshot shares its
+     * text with this document, so only the piece list is copied. Editing
+     * the snapshot throws an UnsupportedOperationException.
+     *
+     * @return The snapshot.
+     */
+    public PieceTable snapshot() {
+        return new PieceTable(original, added.freeze(), new ArrayList<>(pieces), length);
+    }
+
+    /**
+     *
+     * @return True if this is an immutable snapshot.
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+
+        long c = locate(index);
+        return charAt(pieces.get(pieceIndex(c)), index - pieceStart(c));
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return getText(start, end);
+    }
+
+    /**
+     * Get text from a range of the document.
+     *
+     * @param start Start index (inclusive).
+     * @param end End index (exclusive).
+     * @return Text in the range.
+     */
+    public String getText(int start, int end) {
+        checkRange(start, end);
+
+        StringBuilder sb = new StringBuilder(end - start);
+        appendTo(sb, start, end);
+
+        return sb.toString();
+    }
+
+    /**
+     * Append a range of the document to a string builder.
+     *
+     * @param sb String builder.
+     * @param start Start index (inclusive).
+     * @param end End index (exclusive).
+     */
+    public void appendTo(StringBuilder sb, int start, int end) {
+        checkRange(start, end);
+
+        if (start == end) {
+            return;
+        }
+
+        long c = locate(start);
+        int i = pieceIndex(c);
+        int pos = pieceStart(c);
+
+        while (pos < end) {
+            Piece p = pieces.get(i);
+            int from = Math.max(start, pos) - pos;
+            int to = Math.min(end, pos + p.length) - pos;
+
+            if (p.added) {
+                added.appendTo(sb, p.start + from, p.start + to);
+            } else {
+                sb.append(original, p.start + from, p.start + to);
+            }
+
+            pos += p.length;
+            i++;
+        }
+    }
+
+    /**
+     * Copy a range of the document into a character array.
+     *
+     * @param start Start index (inclusive).
+     * @param end End index (exclusive).
+     * @param dst Destination array.
+     * @param dstBegin Start offset in the destination array.
+     */
+    public void getChars(int start, int end, char[] dst, int dstBegin) {
+        checkRange(start, end);
+
+        if (start == end) {
+            return;
+        }
+
+        long c = locate(start);
+        int i = pieceIndex(c);
+        int pos = pieceStart(c);
+
+        while (pos < end) {
+            Piece p = pieces.get(i);
+            int from = p.start + Math.max(start, pos) - pos;
+            int to = p.start + Math.min(end, pos + p.length) - pos;
+
+            if (p.added) {
+                added.getChars(from, to, dst, dstBegin);
+            } else if (original instanceof String) {
+                ((String)original).getChars(from, to, dst, dstBegin);
+            } else {
+                for (int j = from; j < to; j++) {
+                    dst[dstBegin + j - from] = original.charAt(j);
+                }
+            }
+
+            dstBegin += to - from;
+            pos += p.length;
+            i++;
+        }
+    }
+
+    /**
+     * Iterate over a range of the document in chunks, without copying the
+     * text. Each chunk is a read-only view of one of the buffers. The
+     * document must not change while iterating (use a snapshot).
+     *
+     * @param start Start index (inclusive).
+     * @param end End index (exclusive).
+     * @return The chunks, in order.
+     */
+    public Iterator<CharSequence> chunks(int start, int end) {
+        checkRange(start, end);
+        long c = (start < end) ? locate(start) : 0;
+
+        return new Iterator<CharSequence>() {
+
+            // Next piece, its start offset, and the start of the next chunk.
+            private int i = pieceIndex(c);
+            private int pos = pieceStart(c);
+            private int from = start;
+
+            @Override
+            public boolean hasNext() {
+                return from < end;
+            }
+
+            @Override
+            public CharSequence next() {
+                if (from >= end) {
+                    throw new NoSuchElementException();
+                }
+
+                Piece p = pieces.get(i);
+                int to = Math.min(end, pos + p.length);
+                CharSequence chunk = p.added
+                    ? added.chunk(p.start + from - pos, p.start + to - pos)
+                    : CharBuffer.wrap(original, p.start + from - pos, p.start + to - pos);
+
+                from += chunk.length();
+                if (from == pos + p.length) {
+                    pos += p.length;
+                    i++;
+                }
+
+                return chunk;
+            }
+        };
+    }
+
+    /**
+     * Insert text into the document.
+     *
+     * @param pos Insert position.
+     * @param text Text to insert.
+     */
+    public void insert(int pos, CharSequence text) {
+        replace(pos, pos, text);
+    }
+
+    /**
+     * Delete a range of text from the document.
+     *
+     * @param start Start index (inclusive).
+     * @param end End index (exclusive).
+     */
+    public void delete(int start, int end) {
+        replace(start, end, "");
+    }
+
+    /**
+     * Replace a range of the document with new text.
+     *
+     * @param start Start index (inclusive).
+     * @param end End index (exclusive).
+     * @param text Replacement text.
+     */
+    public void replace(int start, int end, CharSequence text) {
+        checkRange(start, end);
+
+        if (readOnly) {
+            throw new UnsupportedOperationException("Snapshots cannot be edited.");
+        }
+
+        if (start == end && text.length() == 0) {
+            return;
+        }
+
+        // Range of pieces affected by the edit, and what is left of the
+        // pieces either side of the edit.
+        int first;
+        int firstStart;
+        int last;
+        Piece left = null;
+        Piece right = null;
+
+        if (start == length) {
+            first = pieces.size();
+            firstStart = length;
+            last = first;
+        } else {
+            long c = locate(start);
+            first = pieceIndex(c);
+            firstStart = pieceStart(c);
+            last = first;
+
+            int pos = firstStart;
+            if (start > pos) {
+                left = pieces.get(first).slice(0, start - pos);
+            }
+
+            // Skip the pieces that are removed entirely.
+            while (last < pieces.size() && pos + pieces.get(last).length <= end) {
+                pos += pieces.get(last).length;
+                last++;
+            }
+
+            // Split the piece containing the end of the edit.
+            if (last < pieces.size() && (pos < end || (last == first && left != null))) {
+                Piece p = pieces.get(last);
+                right = p.slice(end - pos, p.length);
+                last++;
+            }
+        }
+
+        Piece inserted = null;
+        if (text.length() > 0) {
+            int addStart = added.append(text);
+
+            // Extend the previous piece if the text directly follows it in the
+            // add buffer (i.e., the user is typing).
+            Piece prev = left;
+            if (prev == null && first > 0) {
+                prev = pieces.get(first - 1);
+            }
+
+            if (prev != null && prev.added && prev.start + prev.length == addStart) {
+                if (left == null) {
+                    first--;
+                    firstStart -= prev.length;
+                }
+                left = new Piece(true, prev.start, prev.length + text.length());
+            } else {
+                inserted = new Piece(true, addStart, text.length());
+            }
+        }
+
+        List<Piece> affected = pieces.subList(first, last);
+        affected.clear();
+
+        if (right != null) affected.add(right);
+        if (inserted != null) affected.add(0, inserted);
+        if (left != null) affected.add(0, left);
+
+        length += text.length() - (end - start);
+
+        // Pieces before the edit are unchanged, so lookups can continue
+        // from the first affected piece.
+        cursor = cursor(first, firstStart);
+    }
+
+    /**
+     *
+     * @return Number of pieces describing the document.
+     */
+    public int getPieceCount() {
+        return pieces.size();
+    }
+
+    @Override
+    public String toString() {
+        return getText(0, length);
+    }
+
+    /**
+     * Locate the piece containing an index.
+     *
+     * @param index Index (0 <= index < length).
+     * @return Index of the piece and its start offset (see pieceIndex and pieceStart).
+     */
+    private long locate(int index) {
+        long c = cursor;
+        int i = pieceIndex(c);
+        int start = pieceStart(c);
+
+        if (i >= pieces.size() || index < start / 2) {
+            i = 0;
+            start = 0;
+        }
+
+        while (index < start) {
+            i--;
+            start -= pieces.get(i).length;
+        }
+
+        while (index >= start + pieces.get(i).length) {
+            start += pieces.get(i).length;
+            i++;
+        }
+
+        c = cursor(i, start);
+        cursor = c;
+
+        return c;
+    }
+
+    private static long cursor(int pieceIndex, int pieceStart) {
+        return ((long)pieceIndex << 32) | (pieceStart & 0xFFFFFFFFL);
+    }
+
+    private static int pieceIndex(long cursor) {
+        return (int)(cursor >>> 32);
+    }
+
+    private static int pieceStart(long cursor) {
+        return (int)cursor;
+    }
+
+    /**
+     * Get a character from a piece.
+     *
+     * @param p Piece.
+     * @param offset Offset within the piece.
+     * @return The character.
+     */
+    private char charAt(Piece p, int offset) {
+        return p.added ? added.charAt(p.start + offset) : original.charAt(p.start + offset);
+    }
+
+    /**
+     * Check a range is valid for this document.
+     *
+     * @param start Start index.
+     * @param end End index.
+     */
+    private void checkRange(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("range [" + start + ", " + end + "), length " + length);
+        }
+    }
+
+    /**
+     * A span of either the original text or the add buffer.
+     * Pieces are immutable.
+     */
+    private static final class Piece {
+
+        // True if the piece refers to the add buffer.
+        final boolean added;
+
+        // Start of the span in its buffer.
+        final int start;
+
+        // Length of the span.
+        final int length;
+
+        Piece(boolean added, int start, int length) {
+            this.added = added;
+            this.start = start;
+            this.length = length;
+        }
+
+        /**
+         *
+         * @param from Start offset within this piece (inclusive).
+         * @param to End offset within this piece (exclusive).
+         * @return A piece covering part of this piece.
+         */
+        Piece slice(int from, int to) {
+            return new Piece(added, start + from, to - from);
+        }
+    }
+
+    /**
+     * Append-only character buffer stored in fixed-size chunks.
+     * Text already in the buffer is never moved or modified, so growing
+     * the buffer never copies previously added text.
+     */
+    private static final class AddBuffer {
+
+        // Size of each chunk.
+        private static final int CHUNK_SIZE = 1 << 14;
+
+        // Chunks of text. All but the last chunk are full. The array is
+        // replaced (not modified) when it needs to grow.
+        private char[][] chunks;
+
+        // Number of characters in the buffer.
+        private int length;
+
+        // True if this is a frozen view.
+        private final boolean frozen;
+
+        AddBuffer() {
+            this.chunks = new char[4][];
+            this.frozen = false;
+        }
+
+        private AddBuffer(char[][] chunks, int length) {
+            this.chunks = chunks;
+            this.length = length;
+            this.frozen = true;
+        }
+
+        /**
+         * Create a read-only view of the text currently in the buffer.
+         * Appends to this buffer only write past the end of the view, or
+         * into a new chunk array, so the view never changes.
+         *
+         * @return The view.
+         */
+        AddBuffer freeze() {
+            return new AddBuffer(chunks, length);
+        }
+
+        /**
+         * Append text to the buffer.
+         *
+         * @param text Text to append.
+         * @return Start index of the text in the buffer.
+         */
+        int append(CharSequence text) {
+            if (frozen) {
+                throw new UnsupportedOperationException("Snapshots cannot be edited.");
+            }
+
+            int start = length;
+
+            for (int i = 0; i < text.length(); i++) {
+                int chunk = length / CHUNK_SIZE;
+                int offset = length % CHUNK_SIZE;
+
+                if (offset == 0) {
+                    if (chunk == chunks.length) {
+                        chunks = Arrays.copyOf(chunks, chunks.length * 2);
+                    }
+                    chunks[chunk] = new char[CHUNK_SIZE];
+                }
+
+                chunks[chunk][offset] = text.charAt(i);
+                length++;
+            }
+
+            return start;
+        }
+
+        char charAt(int index) {
+            return chunks[index / CHUNK_SIZE][index % CHUNK_SIZE];
+        }
+
+        void getChars(int start, int end, char[] dst, int dstBegin) {
+            while (start < end) {
+                int offset = start % CHUNK_SIZE;
+                int n = Math.min(end - start, CHUNK_SIZE - offset);
+
+                System.arraycopy(chunks[start / CHUNK_SIZE], offset, dst, dstBegin, n);
+                start += n;
+                dstBegin += n;
+            }
+        }
+
+        /**
+         *
+         * @param start Start index (inclusive).
+         * @param end End index (exclusive).
+         * @return Read-only view of the range, cut short at the end of
+         *         the chunk it starts in.
+         */
+        CharSequence chunk(int start, int end) {
+            int offset = start % CHUNK_SIZE;
+            int n = Math.min(end - start, CHUNK_SIZE - offset);
+
+            return CharBuffer.wrap(chunks[start / CHUNK_SIZE], offset, n).asReadOnlyBuffer();
+        }
+
+        void appendTo(StringBuilder sb, int start, int end) {
+            while (start < end) {
+                int offset = start % CHUNK_SIZE;
+                int n = Math.min(end - start, CHUNK_SIZE - offset);
+
+                sb.append(chunks[start / CHUNK_SIZE], offset, n);
+                start += n;
+            }
+        }
+    }
+}
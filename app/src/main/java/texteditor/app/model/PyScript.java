@@ -1,5 +1,9 @@
 package texteditor.app.model;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 import java.util.Objects;
 
 /**
@@ -41,6 +45,20 @@ public class PyScript {
         return src; 
     }
 
+    /**
+     * 
+     * @return SHA-256 hash of the source code, in hex. 
+     */
+    public String getSrcHash() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(src.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform supports SHA-256. 
+            throw new IllegalStateException(e);
+        }
+    }
+
     @Override 
     public boolean equals(Object o) {
         if (o instanceof PyScript) {
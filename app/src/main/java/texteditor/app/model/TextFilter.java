@@ -0,0 +1,51 @@
+package texteditor.app.model;
+
+/**
+ * Filters text the same way the JavaFX text area filters its input
+ * (control characters other than newline and tab are dropped). 
+ * Text going into the document is filtered first, so the document 
+ * and the text area always hold exactly the same characters. 
+ * @author Ryan Martin
+ */
+public final class TextFilter {
+
+    private TextFilter() { }
+
+    /**
+     * Check if a character is kept by the text area. 
+     * 
+     * @param c Character.
+     * @return True if the character is kept.
+     */
+    public static boolean isValid(char c) {
+        return c == '\n' || c == '\t' || (c >= 0x20 && c != 0x7F);
+    }
+
+    /**
+     * Remove characters the text area does not accept. 
+     * 
+     * @param text Input text.
+     * @return Filtered text (the input itself if nothing was removed).
+     */
+    public static String filter(String text) {
+        int i = 0;
+        while (i < text.length() && isValid(text.charAt(i))) {
+            i++;
+        }
+
+        if (i == text.length()) {
+            return text;
+        }
+
+        StringBuilder sb = new StringBuilder(text.length());
+        sb.append(text, 0, i);
+        for (; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (isValid(c)) {
+                sb.append(c);
+            }
+        }
+
+        return sb.toString();
+    }
+}
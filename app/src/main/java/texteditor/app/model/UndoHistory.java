@@ -0,0 +1,259 @@
+package texteditor.app.model;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Undo/redo history of a document, kept as a log of edits.
+ *
+ * Each step stores only the offset of an edit and the text it removed and
+ * inserted, so the history costs about as much memory as the edited text,
+ * however large the document is. Consecutive keystrokes are merged into
+ * one step. The steps are kept in ring buffers (array deques) along with
+ * their total size, and once the size goes over the limit the oldest
+ * steps are dropped.
+ *
+ * @author Ryan Martin
+ */
+public class UndoHistory {
+
+    /**
+     * An edit.
+     */
+    public static final class Step {
+
+        // Start of the edit.
+        private final int offset;
+
+        // Removed and inserted text.
+        private final String removed;
+        private final String inserted;
+
+        private Step(int offset, String removed, String inserted) {
+            this.offset = offset;
+            this.removed = removed;
+            this.inserted = inserted;
+        }
+
+        /**
+         *
+         * @return Start of the edit.
+         */
+        public int getOffset() {
+            return offset;
+        }
+
+        /**
+         *
+         * @return Removed text.
+         */
+        public String getRemoved() {
+            return removed;
+        }
+
+        /**
+         *
+         * @return Inserted text.
+         */
+        public String getInserted() {
+            return inserted;
+        }
+
+        /**
+         *
+         * @return Approximate memory used by the step, in bytes.
+         */
+        private long size() {
+            return STEP_OVERHEAD + 2L * (removed.length() + inserted.length());
+        }
+    }
+
+    // Default memory limit (bytes).
+    public static final long DEFAULT_LIMIT = 4L << 20;
+
+    // Approximate memory used by a step besides its text (bytes).
+    private static final long STEP_OVERHEAD = 64;
+
+    // Longest run of keystrokes merged into one step.
+    private static final int MAX_MERGED = 256;
+
+    // Steps that can be undone (oldest first) and redone (next first).
+    private final Deque<Step> undoSteps = new ArrayDeque<>();
+    private final Deque<Step> redoSteps = new ArrayDeque<>();
+
+    // Memory used by the steps, and the limit (bytes).
+    private long size = 0;
+    private long limit = DEFAULT_LIMIT;
+
+    // True if the most recent step was a keystroke that later keystrokes
+    // may be merged into.
+    private boolean mergeable = false;
+
+    /**
+     * Set the memory limit, dropping the oldest steps if needed.
+     *
+     * @param limit Limit (bytes).
+     */
+    public void setLimit(long limit) {
+        this.limit = Math.max(0, limit);
+        trim();
+    }
+
+    /**
+     * Remove every step.
+     */
+    public void clear() {
+        undoSteps.clear();
+        redoSteps.clear();
+        size = 0;
+        mergeable = false;
+    }
+
+    /**
+     * Record an edit. The steps that could be redone are dropped.
+     *
+     * @param offset Start of the edit.
+     * @param removed Removed text.
+     * @param inserted Inserted text.
+     * @param keystroke True if the edit was typed, and may be merged with
+     *        the keystrokes next to it.
+     */
+    public void record(int offset, String removed, String inserted, boolean keystroke) {
+        for (Step s : redoSteps) {
+            size -= s.size();
+        }
+        redoSteps.clear();
+
+        Step step = new Step(offset, removed, inserted);
+        boolean single = keystroke && isKeystroke(step);
+
+        if (single && mergeable) {
+            Step merged = merge(undoSteps.peekLast(), step);
+            if (merged != null) {
+                size -= undoSteps.pollLast().size();
+                step = merged;
+            }
+        }
+
+        undoSteps.addLast(step);
+        size += step.size();
+        mergeable = single;
+
+        trim();
+    }
+
+    /**
+     * Take the most recent step to undo. It can then be redone.
+     *
+     * @return The step, or null if there is nothing to undo.
+     */
+    public Step undo() {
+        Step step = undoSteps.pollLast();
+
+        if (step != null) {
+            redoSteps.addFirst(step);
+        }
+
+        mergeable = false;
+        return step;
+    }
+
+    /**
+     * Take the next step to redo. It can then be undone again.
+     *
+     * @return The step, or null if there is nothing to redo.
+     */
+    public Step redo() {
+        Step step = redoSteps.pollFirst();
+
+        if (step != null) {
+            undoSteps.addLast(step);
+        }
+
+        mergeable = false;
+        return step;
+    }
+
+    /**
+     *
+     * @return True if there is a step to undo.
+     */
+    public boolean canUndo() {
+        return !undoSteps.isEmpty();
+    }
+
+    /**
+     *
+     * @return True if there is a step to redo.
+     */
+    public boolean canRedo() {
+        return !redoSteps.isEmpty();
+    }
+
+    /**
+     *
+     * @return Approximate memory used by the history, in bytes.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Drop the oldest steps until the history fits in its limit (the steps
+     * that can be redone are newer than any that can be undone).
+     */
+    private void trim() {
+        while (size > limit && !undoSteps.isEmpty()) {
+            size -= undoSteps.pollFirst().size();
+        }
+
+        while (size > limit && !redoSteps.isEmpty()) {
+            size -= redoSteps.pollLast().size();
+        }
+
+        if (undoSteps.isEmpty()) {
+            mergeable = false;
+        }
+    }
+
+    /**
+     *
+     * @param s A step.
+     * @return True if the step is short enough to be a single keystroke
+     *         (typing a character other than a line break, or deleting one).
+     */
+    private static boolean isKeystroke(Step s) {
+        return (s.removed.isEmpty() && s.inserted.length() == 1 && s.inserted.charAt(0) != '\n')
+            || (s.inserted.isEmpty() && s.removed.length() == 1);
+    }
+
+    /**
+     * Merge a keystroke into the keystrokes before it.
+     *
+     * @param prev Previous step (typing or deleting).
+     * @param next The keystroke.
+     * @return The merged step, or null if they are not next to each other.
+     */
+    private static Step merge(Step prev, Step next) {
+        if (prev.removed.length() + prev.inserted.length() >= MAX_MERGED) {
+            return null;
+        }
+
+        if (prev.removed.isEmpty() && next.removed.isEmpty()) {
+            // Typing.
+            if (next.offset == prev.offset + prev.inserted.length()) {
+                return new Step(prev.offset, "", prev.inserted + next.inserted);
+            }
+        } else if (prev.inserted.isEmpty() && next.inserted.isEmpty()) {
+            if (next.offset + 1 == prev.offset) {
+                // Backspace.
+                return new Step(next.offset, next.removed + prev.removed, "");
+            } else if (next.offset == prev.offset) {
+                // Delete.
+                return new Step(prev.offset, prev.removed + next.removed, "");
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,160 @@
+package texteditor.app.plugins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import texteditor.api.DeliveryMode;
+import texteditor.api.TextChange;
+import texteditor.api.TextChangeHandler;
+import texteditor.app.model.PieceTable;
+
+/**
+ * Delivers text changes to a handler on a worker thread.
+ *
+ * Changes are queued on the application thread, which returns straight
+ * away, so a slow handler no longer delays typing. Changes that arrive
+ * while the handler is busy (or, when debounced, before the text has
+ * settled) are delivered together as one batch. Batches for a handler are
+ * delivered one at a time and in order.
+ *
+ * @author Ryan Martin
+ */
+class AsyncChangeHandler implements TextChangeHandler {
+
+    // Time the text has to stay unchanged before a debounced batch is delivered (ms).
+    private static final long DEBOUNCE_DELAY = 200;
+
+    // Worker threads shared by every asynchronous handler.
+    private static final ScheduledExecutorService EXECUTOR = createExecutor();
+
+    // The handler changes are delivered to.
+    private final TextChangeHandler handler;
+
+    // The same handler, if it uses the full-text signature.
+    private final TextModificationAdapter fullTextHandler;
+
+    // True to wait for the text to settle before delivering.
+    private final boolean debounced;
+
+    // Changes waiting to be delivered.
+    private List<TextChange> pending = new ArrayList<>();
+
+    // Document after the last pending change (full-text handlers only).
+    private PieceTable pendingSnapshot = null;
+
+    // True once the pending changes can be delivered.
+    private boolean due = false;
+
+    // True while a worker is delivering changes to the handler.
+    private boolean running = false;
+
+    // Debounce timer, if one is running.
+    private ScheduledFuture<?> timer = null;
+
+    /**
+     * Constructor.
+     *
+     * @param handler The handler changes are delivered to.
+     * @param mode ASYNC or DEBOUNCED.
+     */
+    AsyncChangeHandler(TextChangeHandler handler, DeliveryMode mode) {
+        this.handler = handler;
+        this.fullTextHandler = (handler instanceof TextModificationAdapter) ? (TextModificationAdapter)handler : null;
+        this.debounced = (mode == DeliveryMode.DEBOUNCED);
+    }
+
+    /**
+     * Queue a change (application thread).
+     */
+    @Override
+    public void onTextChanged(TextChange change) {
+        // Snapshots are shared between handlers, so this is only a copy
+        // of the piece list once per change.
+        PieceTable snapshot = (fullTextHandler != null) ? fullTextHandler.takeSnapshot() : null;
+
+        synchronized (this) {
+            pending.add(change);
+            pendingSnapshot = snapshot;
+
+            if (debounced) {
+                if (timer != null) {
+                    timer.cancel(false);
+                }
+                timer = EXECUTOR.schedule(this::markDue, DEBOUNCE_DELAY, TimeUnit.MILLISECONDS);
+            } else {
+                markDue();
+            }
+        }
+    }
+
+    /**
+     * Allow the pending changes to be delivered, and start a worker
+     * unless one is already delivering to this handler.
+     */
+    private synchronized void markDue() {
+        due = true;
+
+        if (!running && !pending.isEmpty()) {
+            running = true;
+            EXECUTOR.execute(this::deliver);
+        }
+    }
+
+    /**
+     * Deliver batches until nothing is due (worker thread).
+     */
+    private void deliver() {
+        while (true) {
+            List<TextChange> batch;
+            PieceTable snapshot;
+
+            synchronized (this) {
+                if (!due || pending.isEmpty()) {
+                    running = false;
+                    return;
+                }
+
+                batch = Collections.unmodifiableList(pending);
+                snapshot = pendingSnapshot;
+
+                pending = new ArrayList<>();
+                pendingSnapshot = null;
+                due = !debounced;
+            }
+
+            try {
+                if (fullTextHandler != null) {
+                    fullTextHandler.onTextChanges(batch, snapshot);
+                } else {
+                    handler.onTextChanges(batch);
+                }
+            } catch (RuntimeException e) {
+                // Keep delivering later batches.
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Create the shared worker threads.
+     * Daemon threads, so they do not keep the program running.
+     *
+     * @return The executor.
+     */
+    private static ScheduledExecutorService createExecutor() {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+        AtomicInteger count = new AtomicInteger(0);
+
+        return new ScheduledThreadPoolExecutor(threads, (r) -> {
+            Thread t = new Thread(r, "text-change-dispatch-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
@@ -0,0 +1,107 @@
+package texteditor.app.plugins;
+
+import java.util.function.Supplier;
+
+import texteditor.api.TextChange;
+import texteditor.api.TextChangeHandler;
+
+/**
+ * Holds a synchronous text handler to the editor's time budget.
+ *
+ * Every call is timed. Once the handler has gone over the budget in
+ * several of its recent calls, it is either moved to debounced delivery
+ * on a worker thread (so later changes are coalesced, and no longer
+ * delay typing) or suspended, depending on the editor's policy, and the
+ * user is warned. Either way, the handler is not moved back.
+ *
+ * @author Ryan Martin
+ */
+class BudgetedChangeHandler implements TextChangeHandler {
+
+    // Number of recent calls considered, and how many of them may go over
+    // the budget before the handler is demoted.
+    private static final int WINDOW = 16;
+    private static final int MAX_OVERRUNS = 3;
+
+    // The handler.
+    private final TextChangeHandler handler;
+
+    // The handler, if it uses the full-text signature, or null.
+    private final TextModificationAdapter fullTextHandler;
+
+    // Creates asynchronous delivery to the same handler.
+    private final Supplier<TextChangeHandler> demote;
+
+    // Who registered the handler, for the warning.
+    private final String owner;
+
+    // The editor (budget and policy).
+    private final Editor editor;
+
+    // One bit per recent call, set if the call went over the budget.
+    private long overruns = 0;
+
+    // Asynchronous delivery, once demoted.
+    private TextChangeHandler demoted = null;
+
+    // True once suspended.
+    private boolean suspended = false;
+
+    /**
+     * Constructor.
+     *
+     * @param handler The handler.
+     * @param demote Creates asynchronous (debounced) delivery to the handler.
+     * @param owner Who registered the handler.
+     * @param editor The editor.
+     */
+    BudgetedChangeHandler(TextChangeHandler handler, Supplier<TextChangeHandler> demote, String owner, Editor editor) {
+        this.handler = handler;
+        this.fullTextHandler = (handler instanceof TextModificationAdapter) ? (TextModificationAdapter)handler : null;
+        this.demote = demote;
+        this.owner = owner;
+        this.editor = editor;
+    }
+
+    /**
+     * Deliver a change (application thread).
+     */
+    @Override
+    public void onTextChanged(TextChange change) {
+        if (suspended) {
+            return;
+        }
+
+        if (demoted != null) {
+            demoted.onTextChanged(change);
+            return;
+        }
+
+        // The full text is built by the editor, not the handler, so it is
+        // built before the call is timed.
+        if (fullTextHandler != null) {
+            fullTextHandler.prepare(change);
+        }
+
+        long budget = editor.getHandlerBudget();
+        long start = System.nanoTime();
+
+        handler.onTextChanged(change);
+
+        if (budget <= 0) {
+            return;
+        }
+
+        overruns = (overruns << 1) | ((System.nanoTime() - start > budget) ? 1 : 0);
+
+        if (Long.bitCount(overruns & ((1L << WINDOW) - 1)) >= MAX_OVERRUNS) {
+            if (editor.isSuspendingSlowHandlers()) {
+                suspended = true;
+            } else {
+                demoted = demote.get();
+            }
+
+            editor.reportSlowHandler(owner, suspended);
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package texteditor.app.plugins;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import texteditor.api.EventHandler;
+import texteditor.api.TextChange;
+import texteditor.api.TextChangeHandler;
+import texteditor.api.TextEditorAPI;
+import texteditor.api.TextModificationHandler;
+
+/**
+ * Measures the callbacks registered by plugins and scripts.
+ *
+ * Each plugin and script is given its own view of the API, which wraps
+ * every callback it registers (buttons, function keys, and text change
+ * and modification handlers) so that each call is timed and its
+ * allocation counted, and attributed to the plugin or script.
+ *
+ * @author Ryan Martin
+ */
+public class CallbackMonitor {
+
+    // Figures of every wrapped callback, in the order they were registered.
+    private final List<CallbackStats> stats = new CopyOnWriteArrayList<>();
+
+    /**
+     *
+     * @return Figures of every callback registered through an
+     *         instrumented API.
+     */
+    public List<CallbackStats> getStats() {
+        return stats;
+    }
+
+    /**
+     *
+     * @param owner Name of a plugin or script.
+     * @return CPU time of the calls to its callbacks (ns).
+     */
+    public long getCpuTime(String owner) {
+        long total = 0;
+        for (CallbackStats s : stats) {
+            if (s.getOwner().equals(owner)) {
+                total += s.getCpuTime();
+            }
+        }
+        return total;
+    }
+
+    /**
+     *
+     * @param owner Name of a plugin or script.
+     * @return Memory allocated by the calls to its callbacks (bytes).
+     */
+    public long getAllocatedBytes(String owner) {
+        long total = 0;
+        for (CallbackStats s : stats) {
+            if (s.getOwner().equals(owner)) {
+                total += s.getAllocatedBytes();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Create a view of the API for a plugin or script, which measures the
+     * callbacks registered through it.
+     *
+     * @param api The API.
+     * @param owner Name of the plugin or script.
+     * @return The view.
+     */
+    public TextEditorAPI instrument(TextEditorAPI api, String owner) {
+        return (TextEditorAPI)Proxy.newProxyInstance(
+            TextEditorAPI.class.getClassLoader(), new Class<?>[] { TextEditorAPI.class }, (proxy, method, args) -> {
+                if (args != null && method.getName().startsWith("register")) {
+                    String callback = describe(method, args);
+
+                    args = args.clone();
+                    for (int i = 0; i < args.length; i++) {
+                        args[i] = wrap(args[i], owner, callback);
+                    }
+                }
+
+                try {
+                    return method.invoke(api, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        );
+    }
+
+    /**
+     * Write the figures as CSV: one row per callback, with the call times
+     * in microseconds, followed by the histogram.
+     *
+     * @param out Destination.
+     * @throws IOException If the figures cannot be written.
+     */
+    public void exportCsv(Writer out) throws IOException {
+        out.write("owner,callback,calls,total_us,cpu_us,mean_us,p50_us,p90_us,p99_us,max_us,allocated_bytes");
+        for (int i = 0; i < CallbackStats.BUCKETS; i++) {
+            out.write(",lt_" + CallbackStats.bucketLimit(i) + "_us");
+        }
+        out.write("\n");
+
+        for (CallbackStats s : stats) {
+            long calls = s.getCount();
+
+            out.write(csv(s.getOwner()) + "," + csv(s.getCallback()) + "," + calls
+                + "," + s.getTotalTime() / 1000
+                + "," + s.getCpuTime() / 1000
+                + "," + ((calls > 0) ? s.getTotalTime() / calls / 1000 : 0)
+                + "," + s.getPercentile(50)
+                + "," + s.getPercentile(90)
+                + "," + s.getPercentile(99)
+                + "," + s.getMaxTime() / 1000
+                + "," + s.getAllocatedBytes());
+
+            for (long count : s.getHistogram()) {
+                out.write("," + count);
+            }
+            out.write("\n");
+        }
+    }
+
+    /**
+     * Wrap a callback, if the argument is one.
+     *
+     * @param arg Argument of a register method.
+     * @param owner Name of the plugin or script.
+     * @param callback What the callback is registered for.
+     * @return The wrapped callback, or the argument.
+     */
+    private Object wrap(Object arg, String owner, String callback) {
+        if (arg instanceof EventHandler) {
+            EventHandler handler = (EventHandler)arg;
+            CallbackStats s = add(owner, callback);
+
+            return (EventHandler)() -> {
+                long start = System.nanoTime();
+                long cpu = CallbackStats.cpuTime();
+                long allocated = CallbackStats.allocatedBytes();
+                try {
+                    handler.onEvent();
+                } finally {
+                    s.record(System.nanoTime() - start, CallbackStats.cpuTime() - cpu,
+                        CallbackStats.allocatedBytes() - allocated);
+                }
+            };
+        } else if (arg instanceof TextModificationHandler) {
+            return new TimedModificationHandler((TextModificationHandler)arg, add(owner, callback));
+        } else if (arg instanceof TextChangeHandler) {
+            return new TimedChangeHandler((TextChangeHandler)arg, add(owner, callback));
+        }
+
+        return arg;
+    }
+
+    /**
+     *
+     * @param handler A text handler passed to the API.
+     * @return The plugin or script that registered it and what for, if it
+     *         was registered through an instrumented API, or else its class.
+     */
+    static String describe(Object handler) {
+        CallbackStats s = (handler instanceof TimedChangeHandler) ? ((TimedChangeHandler)handler).stats
+            : (handler instanceof TimedModificationHandler) ? ((TimedModificationHandler)handler).stats
+            : null;
+
+        return (s != null) ? s.getOwner() + " (" + s.getCallback() + ")" : handler.getClass().getName();
+    }
+
+    private CallbackStats add(String owner, String callback) {
+        CallbackStats s = new CallbackStats(owner, callback);
+        stats.add(s);
+        return s;
+    }
+
+    /**
+     *
+     * @param method A register method.
+     * @param args Its arguments.
+     * @return What a callback passed to it is registered for.
+     */
+    private static String describe(Method method, Object[] args) {
+        switch (method.getName()) {
+            case "registerButton":
+                return "button: " + args[0];
+            case "registerOnFunctionKeyEvent":
+                return "key: " + args[0];
+            case "registerTextChangeHandler":
+                return "text change handler";
+            case "registerTextModificationHandler":
+                return "text modification handler";
+            default:
+                return method.getName();
+        }
+    }
+
+    private static String csv(String field) {
+        if (field.contains(",") || field.contains("\"") || field.contains("\n")) {
+            return "\"" + field.replace("\"", "\"\"") + "\"";
+        }
+        return field;
+    }
+
+    /**
+     * Times a text change handler. A batch of changes delivered together
+     * is timed as one call.
+     */
+    private static final class TimedChangeHandler implements TextChangeHandler {
+
+        // The handler.
+        private final TextChangeHandler handler;
+
+        // Its figures.
+        private final CallbackStats stats;
+
+        TimedChangeHandler(TextChangeHandler handler, CallbackStats stats) {
+            this.handler = handler;
+            this.stats = stats;
+        }
+
+        @Override
+        public void onTextChanged(TextChange change) {
+            long start = System.nanoTime();
+            long cpu = CallbackStats.cpuTime();
+            long allocated = CallbackStats.allocatedBytes();
+            try {
+                handler.onTextChanged(change);
+            } finally {
+                stats.record(System.nanoTime() - start, CallbackStats.cpuTime() - cpu,
+                    CallbackStats.allocatedBytes() - allocated);
+            }
+        }
+
+        @Override
+        public void onTextChanges(List<TextChange> changes) {
+            long start = System.nanoTime();
+            long cpu = CallbackStats.cpuTime();
+            long allocated = CallbackStats.allocatedBytes();
+            try {
+                handler.onTextChanges(changes);
+            } finally {
+                stats.record(System.nanoTime() - start, CallbackStats.cpuTime() - cpu,
+                    CallbackStats.allocatedBytes() - allocated);
+            }
+        }
+    }
+
+    /**
+     * Times a text modification handler.
+     */
+    private static final class TimedModificationHandler implements TextModificationHandler {
+
+        // The handler.
+        private final TextModificationHandler handler;
+
+        // Its figures.
+        private final CallbackStats stats;
+
+        TimedModificationHandler(TextModificationHandler handler, CallbackStats stats) {
+            this.handler = handler;
+            this.stats = stats;
+        }
+
+        @Override
+        public void onTextModified(String prev, String current) {
+            long start = System.nanoTime();
+            long cpu = CallbackStats.cpuTime();
+            long allocated = CallbackStats.allocatedBytes();
+            try {
+                handler.onTextModified(prev, current);
+            } finally {
+                stats.record(System.nanoTime() - start, CallbackStats.cpuTime() - cpu,
+                    CallbackStats.allocatedBytes() - allocated);
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package texteditor.app.plugins;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Time taken (elapsed and CPU) and memory allocated by a callback registered by a plugin or
+ * script, over all of its calls.
+ *
+ * Call times are counted in a histogram with power-of-two buckets (in
+ * microseconds), so recording a call is a handful of atomic increments
+ * and percentiles are accurate to within a factor of two.
+ *
+ * @author Ryan Martin
+ */
+public class CallbackStats {
+
+    // Number of histogram buckets. Bucket i counts calls taking less than
+    // 2^(i+1) us (the last bucket counts every longer call).
+    public static final int BUCKETS = 32;
+
+    // Thread CPU time, if it can be measured, or null.
+    private static final ThreadMXBean CPU = cpuBean();
+
+    // Allocation counters, if allocation can be measured (HotSpot), or null.
+    private static final com.sun.management.ThreadMXBean ALLOCATION = allocationBean();
+
+    // Plugin or script that registered the callback.
+    private final String owner;
+
+    // What the callback is registered for (i.e., a button).
+    private final String callback;
+
+    // Number of calls, and their total time and CPU time (ns) and
+    // allocation (bytes).
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalTime = new LongAdder();
+    private final LongAdder cpuTime = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+
+    // Longest call (ns).
+    private final AtomicLong maxTime = new AtomicLong();
+
+    // Number of calls in each bucket.
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Constructor.
+     *
+     * @param owner Plugin or script that registered the callback.
+     * @param callback What the callback is registered for.
+     */
+    CallbackStats(String owner, String callback) {
+        this.owner = owner;
+        this.callback = callback;
+    }
+
+    /**
+     *
+     * @return Plugin or script that registered the callback.
+     */
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+     *
+     * @return What the callback is registered for.
+     */
+    public String getCallback() {
+        return callback;
+    }
+
+    /**
+     *
+     * @return Number of calls.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     *
+     * @return Total time of the calls (ns).
+     */
+    public long getTotalTime() {
+        return totalTime.sum();
+    }
+
+    /**
+     *
+     * @return CPU time of the calls (ns), or 0 if it cannot be measured.
+     */
+    public long getCpuTime() {
+        return cpuTime.sum();
+    }
+
+    /**
+     *
+     * @return Time of the longest call (ns).
+     */
+    public long getMaxTime() {
+        return maxTime.get();
+    }
+
+    /**
+     *
+     * @return Memory allocated by the calls (bytes), or 0 if it cannot be
+     *         measured.
+     */
+    public long getAllocatedBytes() {
+        return allocated.sum();
+    }
+
+    /**
+     *
+     * @return Number of calls in each bucket of the histogram.
+     */
+    public long[] getHistogram() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = histogram.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * Estimate a percentile of the call times.
+     *
+     * @param p Percentile (0 to 100).
+     * @return Upper bound of the bucket containing the percentile (us), or
+     *         0 if there have been no calls.
+     */
+    public long getPercentile(double p) {
+        long[] counts = getHistogram();
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+
+        long rank = (long)Math.ceil(total * p / 100);
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen > 0 && seen >= rank) {
+                return bucketLimit(i);
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     *
+     * @param bucket Index of a bucket.
+     * @return Upper bound of the bucket (us).
+     */
+    public static long bucketLimit(int bucket) {
+        return 2L << bucket;
+    }
+
+    /**
+     * Record a call.
+     *
+     * @param nanos Time taken (ns).
+     * @param cpu CPU time taken (ns).
+     * @param bytes Memory allocated (bytes).
+     */
+    void record(long nanos, long cpu, long bytes) {
+        count.increment();
+        totalTime.add(nanos);
+        cpuTime.add(Math.max(0, cpu));
+        allocated.add(Math.max(0, bytes));
+        maxTime.accumulateAndGet(nanos, Math::max);
+
+        long micros = nanos / 1000;
+        int bucket = (micros < 2) ? 0 : 63 - Long.numberOfLeadingZeros(micros);
+        histogram.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+    }
+
+    /**
+     *
+     * @return CPU time of the current thread so far (ns), or 0 if it cannot
+     *         be measured.
+     */
+    static long cpuTime() {
+        return (CPU != null) ? CPU.getCurrentThreadCpuTime() : 0;
+    }
+
+    /**
+     *
+     * @return Memory allocated by the current thread so far (bytes), or 0
+     *         if it cannot be measured.
+     */
+    static long allocatedBytes() {
+        return (ALLOCATION != null) ? ALLOCATION.getCurrentThreadAllocatedBytes() : 0;
+    }
+
+    private static ThreadMXBean cpuBean() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        return (threads.isCurrentThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled()) ? threads : null;
+    }
+
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)threads;
+            if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+                return bean;
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,149 @@
+package texteditor.app.plugins;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import texteditor.api.TextSnapshot;
+import texteditor.app.model.PieceTable;
+
+/**
+ * A range of an immutable piece table snapshot, handed to plugins as a
+ * TextSnapshot. Reads go straight to the piece table's buffers, so
+ * neither taking the snapshot nor reading it copies the text.
+ *
+ * @author Ryan Martin
+ */
+class DocumentSnapshot implements TextSnapshot {
+
+    // The document (a read-only snapshot).
+    private final PieceTable document;
+
+    // Range of the document covered (start inclusive, end exclusive).
+    private final int start;
+    private final int end;
+
+    // Version of the document.
+    private final long version;
+
+    /**
+     * Constructor.
+     *
+     * @param document The document (a read-only snapshot).
+     * @param version Version of the document.
+     */
+    DocumentSnapshot(PieceTable document, long version) {
+        this(document, 0, document.length(), version);
+    }
+
+    private DocumentSnapshot(PieceTable document, int start, int end, long version) {
+        this.document = document;
+        this.start = start;
+        this.end = end;
+        this.version = version;
+    }
+
+    /**
+     *
+     * @return The whole document (a read-only snapshot).
+     */
+    PieceTable getDocument() {
+        return document;
+    }
+
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public int length() {
+        return end - start;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= end - start) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + (end - start));
+        }
+
+        return document.charAt(start + index);
+    }
+
+    @Override
+    public TextSnapshot subSequence(int start, int end) {
+        if (start < 0 || end > length() || start > end) {
+            throw new IndexOutOfBoundsException("range [" + start + ", " + end + "), length " + length());
+        }
+
+        return new DocumentSnapshot(document, this.start + start, this.start + end, version);
+    }
+
+    @Override
+    public Iterable<CharSequence> chunks() {
+        return () -> document.chunks(start, end);
+    }
+
+    @Override
+    public Iterable<TextSnapshot> lines() {
+        return LineIterator::new;
+    }
+
+    @Override
+    public String toString() {
+        return document.getText(start, end);
+    }
+
+    /**
+     * Splits the snapshot into lines, scanning it a chunk at a time.
+     */
+    private final class LineIterator implements Iterator<TextSnapshot> {
+
+        // Chunks not scanned yet.
+        private final Iterator<CharSequence> chunks = document.chunks(start, end);
+
+        // Chunk being scanned, and its offset in the snapshot.
+        private CharSequence chunk = "";
+        private int chunkStart = 0;
+
+        // Start of the next line, or -1 after the last line.
+        private int pos = 0;
+
+        @Override
+        public boolean hasNext() {
+            return pos >= 0;
+        }
+
+        @Override
+        public TextSnapshot next() {
+            if (pos < 0) {
+                throw new NoSuchElementException();
+            }
+
+            int lineStart = pos;
+
+            while (true) {
+                int i = pos - chunkStart;
+                int n = chunk.length();
+
+                while (i < n && chunk.charAt(i) != '\n') {
+                    i++;
+                }
+
+                if (i < n) {
+                    pos = chunkStart + i + 1;
+                    return subSequence(lineStart, chunkStart + i);
+                }
+
+                chunkStart += n;
+                pos = chunkStart;
+
+                if (!chunks.hasNext()) {
+                    pos = -1;
+                    return subSequence(lineStart, length());
+                }
+
+                chunk = chunks.next();
+            }
+        }
+    }
+}
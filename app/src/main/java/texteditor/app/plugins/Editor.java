@@ -1,26 +1,201 @@
 package texteditor.app.plugins;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
 
 import javafx.scene.control.Button;
+import javafx.scene.control.TextArea;
+import javafx.scene.control.TextFormatter;
 import javafx.scene.control.TextInputDialog;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyEvent;
+import texteditor.api.Anchor;
+import texteditor.api.DeliveryMode;
+import texteditor.api.Edit;
 import texteditor.api.EventHandler;
 import texteditor.api.FunctionKey;
+import texteditor.api.SearchHandler;
+import texteditor.api.TextChange;
+import texteditor.api.TextChangeHandler;
 import texteditor.api.TextEditorAPI;
 import texteditor.api.TextModificationHandler;
+import texteditor.api.TextRange;
+import texteditor.api.TextSnapshot;
+import texteditor.app.io.EditJournal;
+import texteditor.app.io.MappedText;
+import texteditor.app.model.AhoCorasick;
+import texteditor.app.model.AnchorTree;
+import texteditor.app.model.IntervalTree;
+import texteditor.app.model.LineIndex;
+import texteditor.app.model.MatchIndex;
+import texteditor.app.model.PieceTable;
+import texteditor.app.model.TextFilter;
+import texteditor.app.model.UndoHistory;
 import texteditor.app.ui.MainUI;
 
 /**
  * API implementation. 
  * Separates GUI access from the MainUI and the plugins. 
+ * 
+ * The text is owned by a piece table document; the text area is only a 
+ * view over it. Every change to the text area (typing, pasting or API 
+ * calls) passes through the text area's formatter filter, which applies 
+ * the same change to the document. All reads are served by the document. 
+ * Once the text area has been updated, the change is reported to the 
+ * text change handlers as a TextChange. 
+ * 
+ * Inside an edit transaction, edits are applied to the document only. 
+ * On commit, the range of the document the transaction changed replaces 
+ * the same range of the text area in one change. 
+ * 
+ * The API may be called from any thread. Calls from other threads (i.e., 
+ * scripts) are queued and run on the application thread (see 
+ * EditorDispatcher); calls that return a value wait for it. Reads of the 
+ * text are served from a snapshot of the document instead, once the 
+ * calling thread's queued calls have been run. 
+ * 
  * @author Ryan Martin
  */
 public class Editor implements TextEditorAPI {
 
+    // Number of search terms indexed at a time. 
+    private static final int SEARCH_INDEXES = 4;
+
+    // Default time a synchronous text handler may take per change (ns). 
+    private static final long DEFAULT_HANDLER_BUDGET = 8_000_000;
+
     // Reference to the main UI.
     // Only this class can interact directly with the GUI. 
     // Plugins only have access to API methods. 
     private final MainUI ui; 
+
+    // The document. 
+    private PieceTable document = new PieceTable();
+
+    // Line start offsets of the document. 
+    private final LineIndex lines = new LineIndex();
+
+    // Highlight layers, by name. 
+    private final Map<String, IntervalTree> highlights = new LinkedHashMap<>();
+
+    // Anchors created by the plugins. 
+    private final AnchorTree anchors = new AnchorTree();
+
+    // Undo/redo history. 
+    private final UndoHistory history = new UndoHistory();
+
+    // Time a synchronous text handler may take per change (ns), or 0 
+    // for no limit, and true to suspend (rather than debounce) handlers 
+    // that keep going over it. 
+    private volatile long handlerBudget = DEFAULT_HANDLER_BUDGET;
+    private volatile boolean suspendSlowHandlers = false;
+
+    // True while a change is being undone or redone. 
+    private boolean undoing = false;
+
+    // Journal the changes are recorded in for crash recovery, or null. 
+    private EditJournal journal = null;
+
+    // Runs calls from other threads on the application thread. 
+    private final EditorDispatcher dispatcher = new EditorDispatcher(this::beginEdit, this::commit);
+
+    // Snapshot of the document for reads from other threads, or null if 
+    // the document has changed since it was taken. 
+    private volatile DocumentSnapshot published = null;
+
+    // Background regular expression search, or null. 
+    private RegexSearch search = null;
+
+    // Indexes of recently searched terms (least recently used first). 
+    private final Map<String, MatchIndex> searchIndexes = new LinkedHashMap<>(SEARCH_INDEXES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MatchIndex> eldest) {
+            return size() > SEARCH_INDEXES;
+        }
+    };
+
+    // Document version, incremented with every change delivered to the 
+    // handlers. 
+    private long version = 0;
+
+    // Number of modifications of the document (several per change in a 
+    // transaction), for knowing when the snapshot and full text are stale. 
+    private long modCount = 0;
+
+    // Change that has passed through the formatter filter, but that the 
+    // text area has not notified its listeners of yet. 
+    private TextChange pendingChange = null;
+
+    // True while the text area is being cleared for a newly loaded document. 
+    private boolean loading = false;
+
+    // Document replaced by the document being loaded. 
+    private PieceTable replacedDocument = null;
+
+    // Text before and after the most recent change, for handlers using 
+    // the full-text signature, and the modification it was built for. 
+    private String[] fullText = null;
+    private long fullTextModCount = -1;
+
+    // Snapshot of the document, or null, and the modification it was 
+    // taken at. 
+    private DocumentSnapshot snapshot = null;
+    private long snapshotModCount = -1;
+
+    // Depth of nested edit transactions. 
+    private int editDepth = 0;
+
+    // Range of the document changed by the current transaction, or -1 
+    // if nothing has changed yet. 
+    private int dirtyStart = -1;
+    private int dirtyEnd = -1;
+
+    // Selection at the end of the current transaction. 
+    private int txnAnchor = 0;
+    private int txnCaret = 0;
+
+    // Text area text being replaced while the text area is brought up to 
+    // date with the document, or null. 
+    private String syncedText = null;
+
+    // True while the text area is being modified through the API. 
+    private boolean apiEdit = false;
+
+    // True if the pending change was made by the user (typing or pasting). 
+    private boolean pendingUserChange = false;
+
+    // Auto-replace rules, and an automaton matching their keys (null if 
+    // there are no rules). 
+    private final Map<String, String> autoReplaceRules = new HashMap<>();
+    private AhoCorasick autoReplaceKeys = null;
+
+    // True while auto-replacing. 
+    private boolean autoReplacing = false;
+
+    // Text being streamed into the editor by a background load, or null. 
+    private CharSequence loadingText = null;
+
+    // True while a chunk of the loading text is being appended. 
+    private boolean appendingChunk = false;
+
+    // True until something other than the background load modifies the 
+    // document while the load is in progress. 
+    private boolean loadIntact = false;
+
+    // Mapped file the document's original buffer is a view of, or null. 
+    private MappedText mappedFile = null;
     
     /**
      * Constructor. 
@@ -29,10 +204,374 @@ public class Editor implements TextEditorAPI {
      */
     public Editor(MainUI ui) {
         this.ui = ui;
+
+        TextArea textArea = ui.getTextArea();
+        textArea.setTextFormatter(new TextFormatter<>(this::applyChange));
+        textArea.textProperty().addListener(observable -> onViewChanged());
+
+        // Undo and redo through the editor's history rather than the 
+        // text area's own (see also the context menu, in MainUI). 
+        textArea.addEventFilter(KeyEvent.KEY_PRESSED, keyEvent -> {
+            if (!keyEvent.isShortcutDown() || keyEvent.isAltDown()) {
+                return;
+            }
+
+            KeyCode key = keyEvent.getCode();
+            if (key == KeyCode.Z && !keyEvent.isShiftDown()) {
+                undo();
+                keyEvent.consume();
+            } else if (key == KeyCode.Y || key == KeyCode.Z) {
+                redo();
+                keyEvent.consume();
+            }
+        });
     } 
+
+    /**
+     * Apply a change to the text area to the document. 
+     * 
+     * @param change The change about to be made to the text area. 
+     * @return The (filtered) change. 
+     */
+    private TextFormatter.Change applyChange(TextFormatter.Change change) {
+        if (change.isContentChange()) {
+            String text = TextFilter.filter(change.getText());
+            if (!text.equals(change.getText())) {
+                change.setText(text);
+            }
+
+            int start = change.getRangeStart();
+            int end = change.getRangeEnd();
+
+            if (start != end || !text.isEmpty()) {
+                CharSequence removed;
+
+                if (loading) {
+                    // The document has already been replaced. 
+                    removed = replacedDocument;
+                } else if (syncedText != null) {
+                    // The document has already been changed by a transaction. 
+                    removed = syncedText;
+                } else {
+                    removed = document.getText(start, end);
+                    replaceDocument(start, end, text);
+
+                    if (loadingText != null && !appendingChunk) {
+                        loadIntact = false;
+                    }
+                }
+
+                // Changes made while loading are reported as one once the 
+                // load ends, so they do not advance the version. 
+                pendingChange = new TextChange(start, removed, text, (loadingText != null) ? version : ++version);
+                pendingUserChange = !loading && syncedText == null && !apiEdit && !appendingChunk;
+
+                if (!loading && !appendingChunk && !undoing) {
+                    history.record(start, removed.toString(), text, pendingUserChange);
+                }
+            }
+        }
+
+        return change;
+    }
+
+    /**
+     * Called after every change to the text area. 
+     */
+    private void onViewChanged() {
+        TextChange change = pendingChange;
+        boolean userChange = pendingUserChange;
+        pendingChange = null;
+        pendingUserChange = false;
+
+        if (change == null) {
+            // The text area was modified without going through the filter 
+            // (its built-in undo/redo), so the document has to be rebuilt. 
+            PieceTable old = document;
+            String text = ui.getTextArea().getText();
+
+            resetDocument(new PieceTable(text));
+            change = new TextChange(0, old, text, ++version);
+        }
+
+        published = null;
+
+        // A load restarts the journal, and is reported to the handlers and 
+        // the search, once it ends. 
+        if (loadingText == null) {
+            if (search != null) {
+                search.onTextChanged(change);
+            }
+
+            if (journal != null && !loading) {
+                journal.append(change.getOffset(), change.getRemovedText().length(), change.getInsertedText().toString());
+            }
+
+            ui.fireTextChanged(change);
+        }
+
+        if (userChange && autoReplaceKeys != null && !autoReplacing && change.getInsertedText().length() > 0) {
+            autoReplace(change);
+        }
+
+        // Don't hold on to copies of the whole text between changes. 
+        fullText = null;
+        fullTextModCount = -1;
+    }
+
+    /**
+     * Replace a range of the document, updating the indexes. 
+     * 
+     * @param start Start index. 
+     * @param end End index. 
+     * @param text Replacement text. 
+     */
+    private void replaceDocument(int start, int end, String text) {
+        document.replace(start, end, text);
+        modCount++;
+        lines.replace(start, end, text);
+
+        for (MatchIndex index : searchIndexes.values()) {
+            index.replace(document, start, end, text.length());
+        }
+
+        for (IntervalTree layer : highlights.values()) {
+            layer.replace(start, end, text.length());
+        }
+
+        anchors.replace(start, end, text.length());
+    }
+
+    /**
+     * Replace the whole document, rebuilding the indexes. 
+     * 
+     * @param doc The new document. 
+     */
+    private void resetDocument(PieceTable doc) {
+        // Anchors past the end of the new document move to its end. 
+        int kept = Math.min(document.length(), doc.length());
+        anchors.replace(kept, document.length(), doc.length() - kept);
+
+        document = doc;
+        modCount++;
+        lines.reset(doc);
+        history.clear();
+        searchIndexes.clear();
+        cancelSearch();
+
+        for (IntervalTree layer : highlights.values()) {
+            layer.clear();
+        }
+    }
+
+    /**
+     * Get the entire text before and after a change, for handlers using 
+     * the full-text signature. The text is only built once per change, 
+     * however many of those handlers are registered. 
+     * 
+     * @param change The change. 
+     * @return The text before and after the change, or null if the 
+     *         document has changed again since (the handlers will be 
+     *         notified of the newer change as well). 
+     */
+    String[] getFullText(TextChange change) {
+        if (change.getVersion() != version) {
+            return null;
+        }
+
+        if (fullText == null || fullTextModCount != modCount) {
+            String current = getText();
+            String prev = current.substring(0, change.getOffset()) 
+                + change.getRemovedText() 
+                + current.substring(change.getInsertedEnd());
+
+            fullText = new String[] { prev, current };
+            fullTextModCount = modCount;
+        }
+
+        return fullText;
+    }
     
+    /**
+     * Get an immutable snapshot of the document, which can be read from 
+     * any thread. The snapshot is shared until the document changes. 
+     * 
+     * @return The snapshot. 
+     */
+    DocumentSnapshot takeSnapshot() {
+        if (snapshot == null || snapshotModCount != modCount || snapshot.getVersion() != version) {
+            snapshot = new DocumentSnapshot(document.snapshot(), version);
+            snapshotModCount = modCount;
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Get a snapshot of the document for a read on another thread. If the 
+     * document has changed since the last one, or calls are still queued, 
+     * a new snapshot is taken on the application thread. 
+     * 
+     * @return The snapshot. 
+     */
+    private DocumentSnapshot readSnapshot() {
+        DocumentSnapshot text = published;
+
+        if (text == null || dispatcher.hasPending()) {
+            text = dispatcher.read(() -> published = takeSnapshot());
+        }
+
+        return text;
+    }
+    
+    /**
+     * Replace the document with loaded text. The text becomes the 
+     * document's original buffer as is, without being copied. 
+     * 
+     * @param text Loaded text. 
+     */
+    public void load(CharSequence text) {
+        beginLoad(text);
+        appendLoaded(text);
+        endLoad(true);
+    }
+
+    /**
+     * Start streaming text into the editor. The document and text area are 
+     * cleared, and the text area is read-only until the load ends. 
+     * 
+     * @param text The text being loaded. 
+     */
+    public void beginLoad(CharSequence text) {
+        replacedDocument = document;
+        resetDocument(new PieceTable());
+
+        loading = true;
+        try {
+            ui.getTextArea().clear();
+        } finally {
+            loading = false;
+            replacedDocument = null;
+        }
+
+        loadingText = text;
+        loadIntact = true;
+        ui.getTextArea().setEditable(false);
+    }
+
+    /**
+     * Append the next chunk of the loading text. The caret is left 
+     * where it is, so the view stays at the start of the file. 
+     * 
+     * @param chunk Chunk of text. 
+     */
+    public void appendLoaded(CharSequence chunk) {
+        TextArea textArea = ui.getTextArea();
+        int caret = textArea.getCaretPosition();
+
+        appendingChunk = true;
+        try {
+            textArea.appendText(chunk.toString());
+        } finally {
+            appendingChunk = false;
+        }
+
+        textArea.positionCaret(caret);
+    }
+
+    /**
+     * Finish streaming text into the editor, and report the loaded text 
+     * to the handlers as a single change. 
+     * If the whole text was loaded and nothing else modified the document 
+     * in the meantime, the document switches to using the loaded text as 
+     * its original buffer, dropping its own copy. Otherwise (i.e., the load 
+     * was cancelled) the document keeps what was loaded. 
+     * 
+     * @param complete True if the whole text was loaded. 
+     * @return True if the document now holds exactly the loaded text (false 
+     *         if no load was in progress). 
+     */
+    public boolean endLoad(boolean complete) {
+        if (loadingText == null) {
+            return false;
+        }
+
+        boolean intact = complete && loadIntact && document.length() == loadingText.length();
+
+        if (intact) {
+            document = new PieceTable(loadingText);
+            modCount++;
+            mappedFile = (loadingText instanceof MappedText) ? (MappedText)loadingText : null;
+        }
+
+        loadingText = null;
+        ui.getTextArea().setEditable(true);
+
+        // The text area was cleared when the load began, so everything 
+        // loaded is reported as one insertion. 
+        TextChange change = new TextChange(0, "", takeSnapshot().getDocument(), ++version);
+        published = null;
+
+        if (search != null) {
+            search.onTextChanged(change);
+        }
+
+        ui.fireTextChanged(change);
+
+        fullText = null;
+        fullTextModCount = -1;
+
+        return intact;
+    }
+
+    /**
+     * If the document's original buffer is a view of a file, copy the 
+     * document into memory and release the file (i.e., before the file is 
+     * replaced by saving over it). 
+     * 
+     * @param file The file about to be replaced. 
+     * @throws IOException If the file cannot be compared. 
+     */
+    public void releaseFile(Path file) throws IOException {
+        if (mappedFile == null || !Files.exists(file) || !Files.exists(mappedFile.getPath())
+                || !Files.isSameFile(mappedFile.getPath(), file)) {
+            return;
+        }
+
+        // The text area holds the same text, without reading the file. 
+        cancelSearch();
+        document = new PieceTable(ui.getTextArea().getText());
+        modCount++;
+        published = null;
+
+        mappedFile.release();
+        mappedFile = null;
+    }
+
+    /**
+     * Set the journal to record changes in. 
+     * 
+     * @param journal The journal, or null. 
+     */
+    public void setJournal(EditJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * 
+     * @return The document. 
+     */
+    public PieceTable getDocument() {
+        return document;
+    }
+
     @Override
     public void registerButton(String label, EventHandler callback) {
+        if (!EditorDispatcher.onAppThread()) {
+            dispatcher.post(() -> registerButton(label, callback));
+            return;
+        }
+
         Button btn = new Button(label); 
         btn.setOnAction((event) -> callback.onEvent());
 
@@ -41,16 +580,150 @@ public class Editor implements TextEditorAPI {
 
     @Override
     public void registerOnFunctionKeyEvent(FunctionKey key, EventHandler callback) {
+        if (!EditorDispatcher.onAppThread()) {
+            dispatcher.post(() -> registerOnFunctionKeyEvent(key, callback));
+            return;
+        }
+
         ui.putCallback(key, callback);
     }
 
     @Override
     public void registerTextModificationHandler(TextModificationHandler callback) {
-        ui.putCallback(callback);
+        if (!EditorDispatcher.onAppThread()) {
+            dispatcher.post(() -> registerTextModificationHandler(callback));
+            return;
+        }
+
+        ui.putCallback(budgeted(
+            new TextModificationAdapter(callback, this), 
+            () -> new AsyncChangeHandler(new TextModificationAdapter(callback, this).async(), DeliveryMode.DEBOUNCED), 
+            callback
+        ));
+    }
+
+    @Override
+    public void registerTextModificationHandler(TextModificationHandler callback, DeliveryMode mode) {
+        if (!EditorDispatcher.onAppThread()) {
+            dispatcher.post(() -> registerTextModificationHandler(callback, mode));
+            return;
+        }
+
+        // Explicitly synchronous handlers are not held to the time budget. 
+        if (mode == DeliveryMode.SYNC) {
+            ui.putCallback(new TextModificationAdapter(callback, this));
+        } else {
+            ui.putCallback(new AsyncChangeHandler(new TextModificationAdapter(callback, this).async(), mode));
+        }
+    }
+
+    @Override
+    public void registerTextChangeHandler(TextChangeHandler callback) {
+        if (!EditorDispatcher.onAppThread()) {
+            dispatcher.post(() -> registerTextChangeHandler(callback));
+            return;
+        }
+
+        ui.putCallback(budgeted(callback, () -> new AsyncChangeHandler(callback, DeliveryMode.DEBOUNCED), callback));
+    }
+
+    @Override
+    public void registerTextChangeHandler(TextChangeHandler callback, DeliveryMode mode) {
+        if (!EditorDispatcher.onAppThread()) {
+            dispatcher.post(() -> registerTextChangeHandler(callback, mode));
+            return;
+        }
+
+        // Explicitly synchronous handlers are not held to the time budget. 
+        if (mode == DeliveryMode.SYNC) {
+            ui.putCallback(callback);
+        } else {
+            ui.putCallback(new AsyncChangeHandler(callback, mode));
+        }
+    }
+
+    /**
+     * Hold a synchronous text handler to the time budget. 
+     * 
+     * @param handler The handler, as delivered to synchronously. 
+     * @param demote Creates debounced delivery to the same handler. 
+     * @param callback The callback the handler was registered with. 
+     * @return The handler to register. 
+     */
+    private TextChangeHandler budgeted(TextChangeHandler handler, Supplier<TextChangeHandler> demote, Object callback) {
+        return new BudgetedChangeHandler(handler, demote, CallbackMonitor.describe(callback), this);
+    }
+
+    @Override
+    public void registerAutoReplace(Map<String, String> rules) {
+        if (!EditorDispatcher.onAppThread()) {
+            dispatcher.post(() -> registerAutoReplace(rules));
+            return;
+        }
+
+        // Rules may come from scripts, so don't rely on the map's types. 
+        for (Map.Entry<?, ?> e : rules.entrySet()) {
+            String key = TextFilter.filter(String.valueOf(e.getKey()));
+            if (!key.isEmpty()) {
+                autoReplaceRules.put(key, String.valueOf(e.getValue()));
+            }
+        }
+
+        if (!autoReplaceRules.isEmpty()) {
+            autoReplaceKeys = new AhoCorasick(new ArrayList<>(autoReplaceRules.keySet()));
+        }
+    }
+
+    /**
+     * Replace auto-replace keys completed by a change. Only keys ending in 
+     * the inserted text can have been completed, so the scan starts at 
+     * most one key length before it. 
+     * 
+     * @param change The change. 
+     */
+    private void autoReplace(TextChange change) {
+        int insertStart = change.getOffset();
+        int insertEnd = change.getInsertedEnd();
+        int from = Math.max(0, insertStart - (autoReplaceKeys.getMaxLength() - 1));
+
+        List<Edit> edits = new ArrayList<>();
+        int lastEnd = from;
+        int state = 0;
+
+        for (int i = from; i < insertEnd; i++) {
+            state = autoReplaceKeys.next(state, document.charAt(i));
+
+            int match = autoReplaceKeys.getMatch(state);
+            if (match >= 0 && i >= insertStart) {
+                String key = autoReplaceKeys.getPattern(match);
+                int start = i + 1 - key.length();
+
+                // Keys replaced in one change must not overlap. 
+                if (start >= lastEnd) {
+                    edits.add(new Edit(start, i + 1, autoReplaceRules.get(key)));
+                    lastEnd = i + 1;
+                    state = 0;
+                }
+            }
+        }
+
+        if (!edits.isEmpty()) {
+            // Replacements are not themselves scanned. 
+            autoReplacing = true;
+            try {
+                applyEdits(edits);
+            } finally {
+                autoReplacing = false;
+            }
+        }
     }
 
     @Override
     public String promptUser(String prompt) {
+        if (!EditorDispatcher.onAppThread()) {
+            return dispatcher.call(() -> promptUser(prompt));
+        }
+
         TextInputDialog dialog = new TextInputDialog();
         dialog.setHeaderText(prompt);
 
@@ -64,48 +737,246 @@ public class Editor implements TextEditorAPI {
 
     @Override
     public int getCaretPosition() {
-        return ui.getTextArea().getCaretPosition();
+        if (!EditorDispatcher.onAppThread()) {
+            return dispatcher.read(() -> getCaretPosition());
+        }
+
+        return (editDepth > 0) ? txnCaret : ui.getTextArea().getCaretPosition();
     }
 
     @Override
     public String getText() {
-        return ui.getTextArea().getText();
+        if (!EditorDispatcher.onAppThread()) {
+            return readSnapshot().toString();
+        }
+
+        return document.toString();
     }
 
     @Override
     public String getText(int startIdx, int endIdx) {
-        return ui.getTextArea().getText(startIdx, endIdx);
+        PieceTable text = EditorDispatcher.onAppThread() ? document : readSnapshot().getDocument();
+        int s = Math.max(startIdx, 0);
+        int e = Math.min(endIdx, text.length());
+
+        return (s < e) ? text.getText(s, e) : "";
     }
 
     @Override
     public int getTextLength() {
-        return ui.getTextArea().getLength();
+        return EditorDispatcher.onAppThread() ? document.length() : readSnapshot().length();
+    }
+
+    @Override
+    public TextSnapshot getSnapshot() {
+        return EditorDispatcher.onAppThread() ? takeSnapshot() : readSnapshot();
+    }
+
+    @Override
+    public int getLineCount() {
+        if (!EditorDispatcher.onAppThread()) {
+            return dispatcher.read(() -> getLineCount());
+        }
+
+        return lines.getLineCount();
+    }
+
+    @Override
+    public int getLineStart(int line) {
+        if (!EditorDispatcher.onAppThread()) {
+            return dispatcher.read(() -> getLineStart(line));
+        }
+
+        int l = Math.max(0, Math.min(line, lines.getLineCount() - 1));
+        return lines.getLineStart(l);
+    }
+
+    @Override
+    public int getLineOfOffset(int pos) {
+        if (!EditorDispatcher.onAppThread()) {
+            return dispatcher.read(() -> getLineOfOffset(pos));
+        }
+
+        int p = Math.max(0, Math.min(pos, getTextLength()));
+        return lines.getLineOfOffset(p);
+    }
+
+    @Override
+    public int findNext(String term, int fromIdx) {
+        if (!EditorDispatcher.onAppThread()) {
+            return dispatcher.read(() -> findNext(term, fromIdx));
+        }
+
+        return term.isEmpty() ? -1 : searchIndex(term).next(Math.max(fromIdx, 0));
+    }
+
+    @Override
+    public int findPrevious(String term, int fromIdx) {
+        if (!EditorDispatcher.onAppThread()) {
+            return dispatcher.read(() -> findPrevious(term, fromIdx));
+        }
+
+        return term.isEmpty() ? -1 : searchIndex(term).previous(Math.min(fromIdx, getTextLength()));
+    }
+
+    @Override
+    public int countAll(String term) {
+        if (!EditorDispatcher.onAppThread()) {
+            return dispatcher.read(() -> countAll(term));
+        }
+
+        return term.isEmpty() ? 0 : searchIndex(term).count();
+    }
+
+    @Override
+    public void searchRegex(String regex, SearchHandler handler) {
+        if (!EditorDispatcher.onAppThread()) {
+            dispatcher.post(() -> searchRegex(regex, handler));
+            return;
+        }
+
+        Pattern pattern = Pattern.compile(regex, Pattern.MULTILINE);
+
+        cancelSearch();
+        search = new RegexSearch(pattern, takeSnapshot().getDocument(), handler);
+        search.start();
+    }
+
+    @Override
+    public void cancelSearch() {
+        if (!EditorDispatcher.onAppThread()) {
+            dispatcher.post(() -> cancelSearch());
+            return;
+        }
+
+        if (search != null) {
+            search.cancel();
+            search = null;
+        }
+    }
+
+    @Override
+    public void addHighlights(String layer, List<TextRange> ranges) {
+        if (!EditorDispatcher.onAppThread()) {
+            dispatcher.post(() -> addHighlights(layer, ranges));
+            return;
+        }
+
+        IntervalTree tree = highlights.computeIfAbsent(layer, name -> new IntervalTree());
+        int length = getTextLength();
+
+        for (TextRange r : ranges) {
+            tree.add(Math.max(0, Math.min(r.getStart(), length)), Math.min(r.getEnd(), length));
+        }
+
+        ui.redrawHighlights();
+    }
+
+    @Override
+    public void clearHighlights(String layer) {
+        if (!EditorDispatcher.onAppThread()) {
+            dispatcher.post(() -> clearHighlights(layer));
+            return;
+        }
+
+        IntervalTree tree = highlights.remove(layer);
+
+        if (tree != null) {
+            ui.redrawHighlights();
+        }
+    }
+
+    @Override
+    public Anchor createAnchor(int idx) {
+        if (!EditorDispatcher.onAppThread()) {
+            return dispatcher.read(() -> createAnchor(idx));
+        }
+
+        int pos = Math.max(0, Math.min(idx, getTextLength()));
+        return new EditorAnchor(anchors.add(pos));
+    }
+
+    /**
+     * Find the highlights (in every layer) overlapping part of the text. 
+     * 
+     * @param from Start index (inclusive). 
+     * @param to End index (exclusive). 
+     * @param consumer Receives each highlight. 
+     */
+    public void forEachHighlight(int from, int to, IntervalTree.RangeConsumer consumer) {
+        for (IntervalTree layer : highlights.values()) {
+            layer.query(from, to, consumer);
+        }
+    }
+
+    /**
+     * Get the index of a search term, building it if the term has not 
+     * been searched for recently. 
+     * 
+     * @param term The search term. 
+     * @return The index. 
+     */
+    private MatchIndex searchIndex(String term) {
+        MatchIndex index = searchIndexes.get(term);
+
+        if (index == null) {
+            index = new MatchIndex(term, document);
+            searchIndexes.put(term, index);
+        }
+
+        return index;
     }
 
     @Override
     public void setCaretPosition(int pos) {
-        ui.getTextArea().positionCaret(pos);
+        if (!EditorDispatcher.onAppThread()) {
+            dispatcher.post(() -> setCaretPosition(pos));
+            return;
+        }
+
+        if (editDepth > 0) {
+            txnAnchor = txnCaret = Math.max(0, Math.min(pos, getTextLength()));
+        } else {
+            ui.getTextArea().positionCaret(pos);
+        }
     }
 
     @Override
     public void insertText(String text) {
+        if (!EditorDispatcher.onAppThread()) {
+            dispatcher.post(() -> insertText(text));
+            return;
+        }
+
         insertText(getCaretPosition(), text);
     }
 
     @Override
     public void insertText(int idx, String text) {
-        ui.getTextArea().insertText(idx, text);
+        if (!EditorDispatcher.onAppThread()) {
+            dispatcher.post(() -> insertText(idx, text));
+            return;
+        }
+
+        edit(idx, idx, text);
     }
 
     @Override
     public String deleteText(int startIdx, int endIdx) {
+        if (!EditorDispatcher.onAppThread()) {
+            return dispatcher.call(() -> deleteText(startIdx, endIdx));
+        }
+
         int length = getTextLength();
 
         if (startIdx > endIdx || startIdx >= length || endIdx <= 0) {
             return null;
         } else {
-            String str = getText().substring(startIdx, endIdx);
-            ui.getTextArea().deleteText(startIdx, endIdx);
+            int s = Math.max(startIdx, 0);
+            int e = Math.min(endIdx, length);
+
+            String str = document.getText(s, e);
+            edit(s, e, "");
 
             return str;
         }
@@ -113,14 +984,17 @@ public class Editor implements TextEditorAPI {
 
     @Override
     public String deleteText(String text) {
-        String beforeCaret = getText().substring(0, getCaretPosition());
-        String afterCaret = getText().substring(getCaretPosition(), getTextLength());
-        
-        if (beforeCaret.endsWith(text)) {
-            String result = beforeCaret.substring(0, beforeCaret.length() - text.length());
-            result += afterCaret;
-            ui.getTextArea().setText(result);
-            return result;
+        if (!EditorDispatcher.onAppThread()) {
+            return dispatcher.call(() -> deleteText(text));
+        }
+
+        int caret = getCaretPosition();
+        int start = caret - text.length();
+
+        // Only the text directly before the caret needs to be compared. 
+        if (start >= 0 && document.getText(start, caret).equals(text)) {
+            edit(start, caret, "");
+            return text;
         } else {
             return null;
         }
@@ -128,19 +1002,396 @@ public class Editor implements TextEditorAPI {
 
     @Override
     public void highlightText(int startIdx, int endIdx) {
+        if (!EditorDispatcher.onAppThread()) {
+            dispatcher.post(() -> highlightText(startIdx, endIdx));
+            return;
+        }
+
         int length = getTextLength();
 
         int s = Math.max(startIdx, 0);
         int e = Math.min(endIdx, length);
 
-        ui.getTextArea().selectRange(s, e);
+        if (editDepth > 0) {
+            txnAnchor = s;
+            txnCaret = e;
+        } else {
+            ui.getTextArea().selectRange(s, e);
+        }
     }
 
     @Override
     public void replaceText(String find, String replace) {
-        String text = getText();
-        text = text.replace(find, replace);
+        if (!EditorDispatcher.onAppThread()) {
+            dispatcher.post(() -> replaceText(find, replace));
+            return;
+        }
+
+        replaceText(find, replace, 0, getTextLength());
+    }
+
+    @Override
+    public int replaceText(String find, String replace, int startIdx, int endIdx) {
+        if (!EditorDispatcher.onAppThread()) {
+            return dispatcher.call(() -> replaceText(find, replace, startIdx, endIdx));
+        }
+
+        int s = Math.max(startIdx, 0);
+        int e = Math.min(endIdx, getTextLength());
+
+        if (find.isEmpty() || e - s < find.length()) {
+            return 0;
+        }
+
+        String text = document.getText(s, e);
+        List<Edit> edits = new ArrayList<>();
+
+        int idx = text.indexOf(find);
+        while (idx != -1) {
+            edits.add(new Edit(s + idx, s + idx + find.length(), replace));
+            idx = text.indexOf(find, idx + find.length());
+        }
+
+        // Leave the text area (and its caret) alone if there is nothing to replace. 
+        if (!edits.isEmpty()) {
+            applyEdits(edits);
+        }
+
+        return edits.size();
+    }
+
+    @Override
+    public void beginEdit() {
+        if (!EditorDispatcher.onAppThread()) {
+            dispatcher.beginEdit();
+            return;
+        }
+
+        if (editDepth++ == 0) {
+            TextArea textArea = ui.getTextArea();
+            txnAnchor = textArea.getAnchor();
+            txnCaret = textArea.getCaretPosition();
+        }
+    }
+
+    @Override
+    public void commit() {
+        if (!EditorDispatcher.onAppThread()) {
+            dispatcher.commit();
+            return;
+        }
+
+        if (editDepth == 0) {
+            throw new IllegalStateException("No edit transaction to commit.");
+        }
+
+        if (--editDepth > 0) {
+            return;
+        }
+
+        TextArea textArea = ui.getTextArea();
+
+        if (dirtyStart >= 0) {
+            // Outside the dirty range, the text area still matches the document. 
+            int viewEnd = dirtyEnd - (document.length() - textArea.getLength());
+
+            syncedText = textArea.getText(dirtyStart, viewEnd);
+            try {
+                textArea.replaceText(dirtyStart, viewEnd, document.getText(dirtyStart, dirtyEnd));
+            } finally {
+                syncedText = null;
+                dirtyStart = dirtyEnd = -1;
+            }
+        }
 
-        ui.getTextArea().setText(text);
+        textArea.selectRange(txnAnchor, txnCaret);
+    }
+
+    @Override
+    public <T> CompletableFuture<T> callAsync(Function<TextEditorAPI, T> call) {
+        if (!EditorDispatcher.onAppThread()) {
+            return dispatcher.submit(() -> call.apply(this));
+        }
+
+        try {
+            return CompletableFuture.completedFuture(call.apply(this));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public boolean undo() {
+        if (!EditorDispatcher.onAppThread()) {
+            return dispatcher.call(() -> undo());
+        }
+
+        if (editDepth > 0) {
+            return false;
+        }
+
+        UndoHistory.Step step = history.undo();
+        if (step == null) {
+            return false;
+        }
+
+        int offset = step.getOffset();
+        replaceStep(offset, offset + step.getInserted().length(), step.getRemoved());
+        return true;
+    }
+
+    @Override
+    public boolean redo() {
+        if (!EditorDispatcher.onAppThread()) {
+            return dispatcher.call(() -> redo());
+        }
+
+        if (editDepth > 0) {
+            return false;
+        }
+
+        UndoHistory.Step step = history.redo();
+        if (step == null) {
+            return false;
+        }
+
+        int offset = step.getOffset();
+        replaceStep(offset, offset + step.getRemoved().length(), step.getInserted());
+        return true;
+    }
+
+    /**
+     * 
+     * @return True if there is a change to undo. 
+     */
+    public boolean canUndo() {
+        return editDepth == 0 && history.canUndo();
+    }
+
+    /**
+     * 
+     * @return True if there is a change to redo. 
+     */
+    public boolean canRedo() {
+        return editDepth == 0 && history.canRedo();
+    }
+
+    /**
+     * Undo or redo a step, without recording it in the history. 
+     * The caret is placed after the replacement text. 
+     * 
+     * @param start Start index. 
+     * @param end End index. 
+     * @param text Replacement text. 
+     */
+    private void replaceStep(int start, int end, String text) {
+        undoing = true;
+        try {
+            edit(start, end, text);
+        } finally {
+            undoing = false;
+        }
+
+        ui.getTextArea().positionCaret(start + text.length());
+    }
+
+    /**
+     * Set the memory limit of the undo/redo history. The oldest changes 
+     * are forgotten once it is reached. 
+     * 
+     * @param bytes Limit (bytes). 
+     */
+    public void setUndoLimit(long bytes) {
+        history.setLimit(bytes);
+    }
+
+    /**
+     * Set the time a synchronous text handler may take per change. A 
+     * handler that keeps going over it is moved to debounced delivery on 
+     * a worker thread, or suspended. 
+     * 
+     * @param nanos Time (ns), or 0 for no limit. 
+     */
+    public void setHandlerBudget(long nanos) {
+        handlerBudget = Math.max(0, nanos);
+    }
+
+    /**
+     * 
+     * @param suspend True to suspend text handlers that keep going over 
+     *        the time budget, rather than move them to debounced delivery. 
+     */
+    public void setSuspendSlowHandlers(boolean suspend) {
+        suspendSlowHandlers = suspend;
+    }
+
+    /**
+     * 
+     * @return Time a synchronous text handler may take per change (ns), 
+     *         or 0 for no limit. 
+     */
+    long getHandlerBudget() {
+        return handlerBudget;
+    }
+
+    /**
+     * 
+     * @return True if slow text handlers are suspended. 
+     */
+    boolean isSuspendingSlowHandlers() {
+        return suspendSlowHandlers;
+    }
+
+    /**
+     * Warn the user that a text handler has kept going over the time 
+     * budget. 
+     * 
+     * @param owner Who registered the handler. 
+     * @param suspended True if it was suspended, false if it was moved to 
+     *        debounced delivery. 
+     */
+    void reportSlowHandler(String owner, boolean suspended) {
+        ui.warnSlowHandler(owner, suspended);
+    }
+
+    @Override
+    public void applyEdits(List<Edit> edits) {
+        if (!EditorDispatcher.onAppThread()) {
+            dispatcher.post(() -> applyEdits(edits));
+            return;
+        }
+
+        List<Edit> sorted = new ArrayList<>(edits);
+        sorted.sort(Comparator.comparingInt(Edit::getStart).thenComparingInt(Edit::getEnd));
+
+        int length = getTextLength();
+        int prevEnd = 0;
+
+        for (Edit e : sorted) {
+            if (e.getStart() < prevEnd || e.getEnd() > length) {
+                throw new IllegalArgumentException("Overlapping or out of bounds edit: " + e);
+            }
+            prevEnd = e.getEnd();
+        }
+
+        beginEdit();
+        try {
+            // Keep the caret on the same text. 
+            int caret = txnCaret;
+            int newCaret = caret;
+
+            for (Edit e : sorted) {
+                int delta = e.getText().length() - (e.getEnd() - e.getStart());
+
+                if (e.getEnd() <= caret && e.getStart() < caret) {
+                    newCaret += delta;
+                } else if (e.getStart() < caret) {
+                    newCaret += e.getStart() + e.getText().length() - caret;
+                }
+            }
+
+            // Applying the edits from last to first leaves the ranges of 
+            // the remaining edits valid. 
+            for (int i = sorted.size() - 1; i >= 0; i--) {
+                Edit e = sorted.get(i);
+                edit(e.getStart(), e.getEnd(), e.getText());
+            }
+
+            txnAnchor = txnCaret = newCaret;
+        } finally {
+            commit();
+        }
+    }
+
+    /**
+     * Replace a range of text. Outside a transaction, the text area is 
+     * modified (which in turn modifies the document). Inside one, only the 
+     * document is modified, and the range is added to the dirty range. 
+     * The caret moves to the end of the new text either way. 
+     * 
+     * @param start Start index. 
+     * @param end End index. 
+     * @param text Replacement text. 
+     */
+    private void edit(int start, int end, String text) {
+        if (editDepth == 0) {
+            apiEdit = true;
+            try {
+                ui.getTextArea().replaceText(start, end, text);
+            } finally {
+                apiEdit = false;
+            }
+            return;
+        }
+
+        String filtered = TextFilter.filter(text);
+        int newEnd = start + filtered.length();
+
+        replaceDocument(start, end, filtered);
+
+        if (loadingText != null) {
+            loadIntact = false;
+        }
+
+        if (dirtyStart < 0) {
+            dirtyStart = start;
+            dirtyEnd = newEnd;
+        } else {
+            // Move the end of the dirty range to where its text is now. 
+            int mappedEnd;
+            if (dirtyEnd <= start) {
+                mappedEnd = dirtyEnd;
+            } else if (dirtyEnd >= end) {
+                mappedEnd = dirtyEnd + newEnd - end;
+            } else {
+                mappedEnd = newEnd;
+            }
+
+            dirtyStart = Math.min(dirtyStart, start);
+            dirtyEnd = Math.max(mappedEnd, newEnd);
+        }
+
+        txnAnchor = txnCaret = newEnd;
+    }
+
+    /**
+     * An anchor created through the API, kept in the editor's anchor tree. 
+     */
+    private final class EditorAnchor implements Anchor {
+
+        // The anchor in the tree. 
+        private final AnchorTree.Handle handle;
+
+        EditorAnchor(AnchorTree.Handle handle) {
+            this.handle = handle;
+        }
+
+        @Override
+        public int getOffset() {
+            if (!EditorDispatcher.onAppThread()) {
+                return dispatcher.read(this::getOffset);
+            }
+
+            return anchors.getOffset(handle);
+        }
+
+        @Override
+        public boolean isRemoved() {
+            if (!EditorDispatcher.onAppThread()) {
+                return dispatcher.read(this::isRemoved);
+            }
+
+            return anchors.getOffset(handle) < 0;
+        }
+
+        @Override
+        public void remove() {
+            if (!EditorDispatcher.onAppThread()) {
+                dispatcher.post(this::remove);
+                return;
+            }
+
+            anchors.remove(handle);
+        }
     }
 }
@@ -0,0 +1,257 @@
+package texteditor.app.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javafx.application.Platform;
+
+/**
+ * Runs API calls made on other threads (i.e., by scripts) on the
+ * application thread.
+ *
+ * Calls are queued, and the queue is drained by a single Platform.runLater
+ * task, scheduled only when the queue goes from empty to non-empty. However
+ * many calls a script makes, the application thread gets one task per
+ * pulse, and spends at most a few milliseconds of each pulse on them.
+ * Calls from a thread are run in the order they were made.
+ *
+ * An edit transaction started on another thread is collected on that
+ * thread and queued as a whole on commit, so its edits are applied
+ * together and never interleave with the user's typing.
+ *
+ * @author Ryan Martin
+ */
+class EditorDispatcher {
+
+    // Time the application thread spends on queued calls per drain (ns).
+    private static final long DRAIN_BUDGET = 8_000_000;
+
+    // Queued calls.
+    private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+
+    // True while a drain is scheduled.
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+
+    // Number of calls queued, and the number run so far.
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong run = new AtomicLong();
+
+    // Calls made in the current transaction of each thread, or null.
+    private final ThreadLocal<List<Runnable>> transaction = new ThreadLocal<>();
+
+    // Depth of nested transactions of each thread.
+    private final ThreadLocal<int[]> depth = ThreadLocal.withInitial(() -> new int[1]);
+
+    // Runs before and after a transaction (the editor's beginEdit and commit).
+    private final Runnable begin;
+    private final Runnable commit;
+
+    /**
+     * Constructor.
+     *
+     * @param begin Starts a transaction on the application thread.
+     * @param commit Commits it.
+     */
+    EditorDispatcher(Runnable begin, Runnable commit) {
+        this.begin = begin;
+        this.commit = commit;
+    }
+
+    /**
+     *
+     * @return True if the current thread is the application thread.
+     */
+    static boolean onAppThread() {
+        return Platform.isFxApplicationThread();
+    }
+
+    /**
+     * Queue a call, without waiting for it.
+     *
+     * @param call The call.
+     */
+    void post(Runnable call) {
+        List<Runnable> txn = transaction.get();
+
+        if (txn != null) {
+            txn.add(call);
+        } else {
+            enqueue(call);
+        }
+    }
+
+    /**
+     * Queue a call returning a value.
+     *
+     * @param call The call.
+     * @return Completes with the value once the call has run (for a call
+     *         inside a transaction, once the transaction is committed).
+     */
+    <T> CompletableFuture<T> submit(Supplier<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        post(() -> complete(future, call));
+        return future;
+    }
+
+    /**
+     * Queue a call and wait for its value.
+     *
+     * @param call The call.
+     * @return Its value.
+     * @throws IllegalStateException If inside a transaction on this thread
+     *         (its calls only run once it commits).
+     */
+    <T> T call(Supplier<T> call) {
+        if (transaction.get() != null) {
+            throw new IllegalStateException("Use the async variant of this method inside an edit transaction.");
+        }
+
+        return join(submit(call));
+    }
+
+    /**
+     * Run a read on the application thread and wait for its value. Unlike
+     * call, this may be used inside a transaction (the read does not see
+     * the transaction's edits until it is committed).
+     *
+     * @param read The read.
+     * @return Its value.
+     */
+    <T> T read(Supplier<T> read) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        enqueue(() -> complete(future, read));
+        return join(future);
+    }
+
+    /**
+     * Start a transaction on this thread.
+     */
+    void beginEdit() {
+        if (depth.get()[0]++ == 0) {
+            transaction.set(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Commit the transaction on this thread, queueing its calls as one.
+     *
+     * @throws IllegalStateException If there is no transaction.
+     */
+    void commit() {
+        int[] d = depth.get();
+        if (d[0] == 0) {
+            throw new IllegalStateException("No edit transaction to commit.");
+        }
+
+        if (--d[0] > 0) {
+            return;
+        }
+
+        List<Runnable> calls = transaction.get();
+        transaction.remove();
+
+        enqueue(() -> {
+            begin.run();
+            try {
+                for (Runnable call : calls) {
+                    runSafely(call);
+                }
+            } finally {
+                commit.run();
+            }
+        });
+    }
+
+    /**
+     *
+     * @return True if calls have been queued that have not finished running.
+     */
+    boolean hasPending() {
+        return run.get() < queued.get();
+    }
+
+    private void enqueue(Runnable call) {
+        queued.incrementAndGet();
+        queue.add(call);
+
+        if (drainScheduled.compareAndSet(false, true)) {
+            Platform.runLater(this::drain);
+        }
+    }
+
+    /**
+     * Run the queued calls (application thread). If they take too long,
+     * the rest are left for the next pulse. If a call throws an error, the
+     * rest are still run, on the next pulse.
+     */
+    private void drain() {
+        drainScheduled.set(false);
+        long start = System.nanoTime();
+
+        try {
+            Runnable call;
+            while ((call = queue.poll()) != null) {
+                try {
+                    runSafely(call);
+                } finally {
+                    run.incrementAndGet();
+                }
+
+                if (System.nanoTime() - start > DRAIN_BUDGET) {
+                    break;
+                }
+            }
+        } finally {
+            if (!queue.isEmpty() && drainScheduled.compareAndSet(false, true)) {
+                Platform.runLater(this::drain);
+            }
+        }
+    }
+
+    /**
+     * Run a call, completing a future with its value or exception (or
+     * error, i.e., a StackOverflowError, so the caller is not left waiting).
+     */
+    private static <T> void complete(CompletableFuture<T> future, Supplier<T> call) {
+        try {
+            future.complete(call.get());
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Wait for a call, rethrowing its exception (if any) on this thread.
+     */
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error)e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Run a call, reporting (rather than propagating) any exception, since
+     * the thread that made the call has moved on.
+     */
+    private static void runSafely(Runnable call) {
+        try {
+            call.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package texteditor.app.plugins;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.python.util.PythonInterpreter;
+
+/**
+ * Python interpreters created ahead of time, on a background thread.
+ *
+ * Starting Jython (initialising the Python system state) takes seconds;
+ * the pool does it once, as the editor starts, and then keeps a few
+ * fresh interpreters ready. Each script takes its own interpreter, which
+ * is never handed out again, so scripts do not see each other's
+ * variables. If Jython cannot be started (i.e., a bad python.home), the
+ * failure is kept and given to every script that takes an interpreter.
+ *
+ * @author Ryan Martin
+ */
+class InterpreterPool {
+
+    // Number of interpreters kept ready.
+    private static final int SIZE = 2;
+
+    // Interpreters ready to be taken.
+    private final BlockingQueue<PythonInterpreter> ready = new ArrayBlockingQueue<>(SIZE);
+
+    // Why interpreters can no longer be created, or null.
+    private volatile Throwable failure = null;
+
+    /**
+     * Start creating interpreters on a new daemon thread.
+     */
+    void start() {
+        Thread thread = new Thread(this::fill, "interpreter-pool");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Take an interpreter, waiting for one to be ready if needed.
+     * Another is created in its place.
+     *
+     * @return The interpreter.
+     * @throws InterruptedException If interrupted while waiting.
+     * @throws IllegalStateException If interpreters cannot be created.
+     */
+    PythonInterpreter take() throws InterruptedException {
+        while (true) {
+            PythonInterpreter interpreter = ready.poll(100, TimeUnit.MILLISECONDS);
+            if (interpreter != null) {
+                return interpreter;
+            }
+
+            if (failure != null) {
+                throw new IllegalStateException("Python interpreter could not be created", failure);
+            }
+        }
+    }
+
+    /**
+     * Initialise Jython, then keep the pool full (pool thread).
+     */
+    private void fill() {
+        try {
+            PythonInterpreter.initialize(System.getProperties(), null, new String[0]);
+
+            while (true) {
+                // Blocks while the pool is full.
+                ready.put(new PythonInterpreter());
+            }
+        } catch (InterruptedException e) {
+            // Stopped.
+        } catch (RuntimeException | LinkageError e) {
+            failure = e;
+        }
+    }
+}
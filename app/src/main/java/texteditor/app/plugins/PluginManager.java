@@ -1,25 +1,89 @@
 package texteditor.app.plugins;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
-import java.util.LinkedList;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.ResourceBundle;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
+import texteditor.api.PluginDescriptor;
 import texteditor.api.TextEditorAPI;
 import texteditor.api.TextEditorPlugin;
 import texteditor.app.exceptions.PluginLoadFailedException;
+import texteditor.app.io.FileIO;
 
 /**
  * Loads plugins. 
+ * 
+ * On startup, plugins are discovered with a ServiceLoader, both on the 
+ * class path (i.e., the plugins module) and in jars in the plugins 
+ * directory, and the enabled ones are loaded in parallel. They are started 
+ * one at a time, in the order they were discovered, as soon as each is 
+ * loaded, so their buttons appear in the same order on every run. 
+ * Whether each known plugin is enabled is kept in a properties file 
+ * (class name = true/false); newly discovered plugins are enabled, and 
+ * plugins added by class name are remembered for the next run. 
+ * 
+ * Plugins with a PluginDescriptor are not started on startup; instead, 
+ * a placeholder registers the buttons, function keys and handlers they 
+ * declare, and starts the plugin when one of them is first used. 
+ * 
  * @author Ryan Martin
  */
 public class PluginManager {
 
+    // Directory of plugin jars, in the application's data directory. 
+    private static final String PLUGINS_DIR = "plugins";
+
+    // File listing the known plugins and whether they are enabled. 
+    private static final String ENABLED_FILE = "plugins.properties";
+
+    // Maximum number of plugins loaded at the same time. 
+    private static final int MAX_LOADERS = 8;
+
     // List of currently loaded/enabled plugins. 
-    private final List<TextEditorPlugin> plugins = new LinkedList<>();
+    private final List<TextEditorPlugin> plugins = new CopyOnWriteArrayList<>();
 
     // Keep track of installed plugins. 
-    private final List<String> pluginClasses = new LinkedList<>();
+    private final CopyOnWriteArrayList<String> pluginClasses = new CopyOnWriteArrayList<>();
+
+    // Placeholders of plugins that are started on first use. 
+    private final List<PluginPlaceholder> placeholders = new CopyOnWriteArrayList<>();
+
+    // Reports failures to start plugins on first use. 
+    private volatile Consumer<String> errorReporter = System.err::println;
+
+    // Known plugins and whether they are enabled. 
+    private final Properties enabled = new Properties();
+
+    // Loads plugin classes (including those in the plugins directory, once 
+    // it has been scanned). 
+    private volatile ClassLoader loader = PluginManager.class.getClassLoader();
+
+    // Measures the callbacks the plugins register. 
+    private final CallbackMonitor monitor;
 
     // Resource bundle for languages. 
     private final ResourceBundle bundle; 
@@ -28,9 +92,11 @@ public class PluginManager {
      * Constructor 
      * 
      * @param bundle Resource bundle for languages. 
+     * @param monitor Measures the callbacks the plugins register. 
      */
-    public PluginManager(ResourceBundle bundle) {
+    public PluginManager(ResourceBundle bundle, CallbackMonitor monitor) {
         this.bundle = bundle;
+        this.monitor = monitor;
     }
 
     /**
@@ -41,36 +107,349 @@ public class PluginManager {
         return plugins; 
     }
 
+    /**
+     * 
+     * @return Names of the plugins that will be started on first use, and 
+     *         have not been used yet. 
+     */
+    public List<String> getInactivePlugins() {
+        List<String> names = new ArrayList<>();
+
+        for (PluginPlaceholder p : placeholders) {
+            if (!p.isActivated()) {
+                names.add(p.getName());
+            }
+        }
+
+        return names;
+    }
+
+    /**
+     * Set how failures to start plugins on first use are reported. 
+     * 
+     * @param errorReporter Called with a message for each failure. 
+     */
+    public void setErrorReporter(Consumer<String> errorReporter) {
+        this.errorReporter = errorReporter;
+    }
+
+    /**
+     * Discover the installed plugins, and load the enabled ones in parallel 
+     * and start them in discovery order, on background threads (their API 
+     * calls are run on the application thread). 
+     * 
+     * @param api API for the plugins to use. 
+     * @return Completes once every plugin has started or failed, with a 
+     *         message for each failure. 
+     */
+    public CompletableFuture<List<String>> loadInstalled(TextEditorAPI api) {
+        ExecutorService pool = Executors.newFixedThreadPool(
+            MAX_LOADERS, ScriptManager.daemonThreads("plugin-loader-", Thread.NORM_PRIORITY)
+        );
+        List<String> errors = Collections.synchronizedList(new ArrayList<>());
+
+        return CompletableFuture.supplyAsync(() -> discover(errors), pool)
+            .thenCompose(found -> {
+                // Each plugin is started once it and every plugin before it 
+                // have been loaded. 
+                CompletableFuture<Void> started = CompletableFuture.completedFuture(null);
+
+                for (Map.Entry<String, ServiceLoader.Provider<TextEditorPlugin>> e : found.entrySet()) {
+                    CompletableFuture<Runnable> loaded = CompletableFuture.supplyAsync(
+                        () -> prepare(e.getKey(), e.getValue(), api, errors), pool
+                    );
+
+                    started = started.thenCombine(loaded, (previous, start) -> {
+                        start.run();
+                        return null;
+                    });
+                }
+
+                return started;
+            })
+            .handle((result, e) -> {
+                pool.shutdown();
+                if (e != null) {
+                    errors.add(String.valueOf((e instanceof CompletionException) ? e.getCause() : e));
+                }
+                return new ArrayList<>(errors);
+            });
+    }
+
     /**
      * Load and start a plugin. 
      * 
      * @param className Class name of the plugin. 
      * @param api API for the plugin to use. 
+     * @return The plugin, or null if it is already loaded. 
      * @throws PluginLoadFailedException If the plugin fails to load. 
      */
     public TextEditorPlugin loadPlugin(String className, TextEditorAPI api) throws PluginLoadFailedException {
+        if (pluginClasses.contains(className)) {
+            return null;
+        }
+
+        TextEditorPlugin plugin = instantiate(loadClass(className));
+        if (!start(className, plugin, monitor.instrument(api, className))) {
+            return null;
+        }
+
+        enabled.setProperty(className, "true");
         try {
-            Class<?> pluginClass = Class.forName(className); 
-            TextEditorPlugin plugin = (TextEditorPlugin)pluginClass.getConstructor().newInstance();
+            saveEnabled();
+        } catch (IOException e) {
+            // The plugin is loaded; it just won't be loaded on the next run. 
+            e.printStackTrace();
+        }
+
+        return plugin;
+    }
 
-            if (!pluginClasses.contains(className)) {
-                plugins.add(plugin);
-                pluginClasses.add(className);
+    /**
+     * Load a plugin, or create its placeholder (loader thread). 
+     * 
+     * @param className Class name of the plugin. 
+     * @param provider Its provider, or null if it was added by class name. 
+     * @param api API for the plugin to use. 
+     * @param errors Failures are added to this list. 
+     * @return Starts the plugin, or registers its placeholder (does nothing 
+     *         if it failed to load). 
+     */
+    private Runnable prepare(String className, ServiceLoader.Provider<TextEditorPlugin> provider, 
+            TextEditorAPI api, List<String> errors) {
+        try {
+            Class<?> type = (provider != null) ? provider.type() : loadClass(className);
+            PluginDescriptor descriptor = type.getAnnotation(PluginDescriptor.class);
 
-                plugin.start(api);
-                
-                return plugin;
+            TextEditorAPI pluginApi = monitor.instrument(api, className);
+
+            if (PluginPlaceholder.isLazy(descriptor)) {
+                PluginPlaceholder p = new PluginPlaceholder(this, type, descriptor, pluginApi);
+
+                return () -> {
+                    try {
+                        if (pluginClasses.addIfAbsent(className)) {
+                            placeholders.add(p);
+                            p.register();
+                        }
+                    } catch (RuntimeException | LinkageError ex) {
+                        errors.add(className + ": " + ex);
+                    }
+                };
             }
-        } catch (InstantiationException | IllegalArgumentException | InvocationTargetException | NoSuchMethodException e) {
-            throw new PluginLoadFailedException(e.getMessage());
+
+            TextEditorPlugin plugin = instantiate(type);
+
+            return () -> {
+                try {
+                    start(className, plugin, pluginApi);
+                } catch (RuntimeException | LinkageError ex) {
+                    errors.add(className + ": " + ex);
+                }
+            };
+        } catch (PluginLoadFailedException ex) {
+            errors.add(className + ": " + ex.getMessage());
+        } catch (ServiceConfigurationError | RuntimeException | LinkageError ex) {
+            // I.e., a failing static initialiser, or a jar missing a dependency. 
+            errors.add(className + ": " + ex);
+        }
+
+        return () -> { };
+    }
+
+    /**
+     * Find the installed plugins, and read which are enabled (loader thread). 
+     * 
+     * @param errors Failures are added to this list. 
+     * @return Class names of the enabled plugins, with their providers 
+     *         (null for plugins that were added by class name), in the order 
+     *         they were discovered, followed by those added by class name. 
+     */
+    private Map<String, ServiceLoader.Provider<TextEditorPlugin>> discover(List<String> errors) {
+        Path appDir = null;
+        try {
+            appDir = FileIO.getAppDir();
+            loader = pluginLoader(appDir.resolve(PLUGINS_DIR));
+            readEnabled(appDir.resolve(ENABLED_FILE));
+        } catch (IOException e) {
+            errors.add(bundle.getString("io_err") + ": " + e.getMessage());
+        }
+
+        Map<String, ServiceLoader.Provider<TextEditorPlugin>> found = new LinkedHashMap<>();
+        Iterator<ServiceLoader.Provider<TextEditorPlugin>> providers =
+            ServiceLoader.load(TextEditorPlugin.class, loader).stream().iterator();
+
+        while (true) {
+            try {
+                if (!providers.hasNext()) {
+                    break;
+                }
+
+                ServiceLoader.Provider<TextEditorPlugin> p = providers.next();
+                found.putIfAbsent(p.type().getName(), p);
+            } catch (ServiceConfigurationError e) {
+                // Skip a badly declared plugin. 
+                errors.add(e.getMessage());
+            }
+        }
+
+        boolean changed = false;
+        for (String className : found.keySet()) {
+            if (enabled.getProperty(className) == null) {
+                enabled.setProperty(className, "true");
+                changed = true;
+            }
+        }
+
+        if (changed && appDir != null) {
+            try {
+                saveEnabled();
+            } catch (IOException e) {
+                errors.add(bundle.getString("io_err") + ": " + e.getMessage());
+            }
+        }
+
+        Map<String, ServiceLoader.Provider<TextEditorPlugin>> toLoad = new LinkedHashMap<>();
+        for (Map.Entry<String, ServiceLoader.Provider<TextEditorPlugin>> e : found.entrySet()) {
+            if (isEnabled(e.getKey())) {
+                toLoad.put(e.getKey(), e.getValue());
+            }
+        }
+
+        // The properties file is unordered. 
+        List<String> added = new ArrayList<>(enabled.stringPropertyNames());
+        Collections.sort(added);
+
+        for (String className : added) {
+            if (!found.containsKey(className) && isEnabled(className)) {
+                toLoad.put(className, null);
+            }
+        }
+
+        return toLoad;
+    }
+
+    /**
+     * Record that a plugin has been started on first use. 
+     * 
+     * @param plugin The plugin. 
+     */
+    void activated(TextEditorPlugin plugin) {
+        plugins.add(plugin);
+    }
+
+    /**
+     * Report a failure to start a plugin on first use. 
+     * 
+     * @param message The message. 
+     */
+    void reportError(String message) {
+        errorReporter.accept(message);
+    }
+
+    /**
+     * Load a plugin class, without initialising it. 
+     * 
+     * @param className Class name of the plugin. 
+     * @return The class. 
+     * @throws PluginLoadFailedException If the class is not found. 
+     */
+    private Class<?> loadClass(String className) throws PluginLoadFailedException {
+        try {
+            return Class.forName(className, false, loader);
         } catch (ClassNotFoundException e) {
             throw new PluginLoadFailedException(bundle.getString("plugin_not_found_err"));
+        } catch (SecurityException e) {
+            throw new PluginLoadFailedException(bundle.getString("security_err"));
+        }
+    }
+
+    /**
+     * Create an instance of a plugin class. 
+     * 
+     * @param pluginClass The plugin class. 
+     * @return The plugin. 
+     * @throws PluginLoadFailedException If the plugin fails to load. 
+     */
+    TextEditorPlugin instantiate(Class<?> pluginClass) throws PluginLoadFailedException {
+        try {
+            return (TextEditorPlugin)pluginClass.getConstructor().newInstance();
+        } catch (InstantiationException | IllegalArgumentException | InvocationTargetException | NoSuchMethodException e) {
+            throw new PluginLoadFailedException(e.getMessage());
         } catch (IllegalAccessException | SecurityException e) {
             throw new PluginLoadFailedException(bundle.getString("security_err"));
         } catch (ClassCastException e) {
             throw new PluginLoadFailedException(bundle.getString("class_cast_err"));
         }
+    }
+
+    /**
+     * Start a plugin, unless a plugin of the same class has been started. 
+     * 
+     * @param className Class name of the plugin. 
+     * @param plugin The plugin. 
+     * @param api API for the plugin to use. 
+     * @return True if the plugin was started. 
+     */
+    private boolean start(String className, TextEditorPlugin plugin, TextEditorAPI api) {
+        if (!pluginClasses.addIfAbsent(className)) {
+            return false;
+        }
+
+        try {
+            plugin.start(api);
+        } catch (RuntimeException | LinkageError e) {
+            pluginClasses.remove(className);
+            throw e;
+        }
+
+        plugins.add(plugin);
+        return true;
+    }
+
+    /**
+     * Create a class loader for the jars in the plugins directory. 
+     * 
+     * @param dir The plugins directory. 
+     * @return The class loader (the application's, if there are no jars). 
+     * @throws IOException If the directory cannot be read. 
+     */
+    private static ClassLoader pluginLoader(Path dir) throws IOException {
+        ClassLoader parent = PluginManager.class.getClassLoader();
+        if (!Files.isDirectory(dir)) {
+            return parent;
+        }
 
-        return null;
+        List<URL> jars = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.jar")) {
+            for (Path jar : files) {
+                jars.add(jar.toUri().toURL());
+            }
+        } catch (MalformedURLException e) {
+            throw new IOException(e);
+        }
+
+        // Directory listings are unordered. 
+        jars.sort(Comparator.comparing(URL::toString));
+
+        return jars.isEmpty() ? parent : new URLClassLoader(jars.toArray(new URL[0]), parent);
+    }
+
+    private boolean isEnabled(String className) {
+        return Boolean.parseBoolean(enabled.getProperty(className).trim());
+    }
+
+    private void readEnabled(Path file) throws IOException {
+        if (Files.exists(file)) {
+            try (InputStream in = Files.newInputStream(file)) {
+                enabled.load(in);
+            }
+        }
+    }
+
+    private synchronized void saveEnabled() throws IOException {
+        try (OutputStream out = Files.newOutputStream(FileIO.getAppDir().resolve(ENABLED_FILE))) {
+            enabled.store(out, "Installed plugins (set to false to disable)");
+        }
     }
 }
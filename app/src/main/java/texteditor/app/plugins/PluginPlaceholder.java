@@ -0,0 +1,223 @@
+package texteditor.app.plugins;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ResourceBundle;
+
+import javafx.application.Platform;
+import texteditor.api.EventHandler;
+import texteditor.api.FunctionKey;
+import texteditor.api.PluginDescriptor;
+import texteditor.api.TextEditorAPI;
+import texteditor.api.TextEditorPlugin;
+import texteditor.app.exceptions.PluginLoadFailedException;
+
+/**
+ * Stands in for a plugin with a descriptor until the plugin is first used.
+ *
+ * The placeholder registers the declared buttons and function keys (and,
+ * if the plugin declares text handlers, a handler waiting for the first
+ * change). The first time one of them is used, the plugin is created and
+ * started with an API that binds the handlers it registers for the
+ * declared buttons and keys to the placeholder's, instead of registering
+ * them again, and the event is passed on. Until then only the plugin's
+ * class is loaded; it is not initialised.
+ *
+ * @author Ryan Martin
+ */
+class PluginPlaceholder {
+
+    // Manager of the plugin.
+    private final PluginManager manager;
+
+    // The plugin class.
+    private final Class<?> type;
+
+    // The API.
+    private final TextEditorAPI api;
+
+    // Plugin name and button labels (localised).
+    private final String name;
+    private final String[] buttons;
+
+    // Declared function keys.
+    private final FunctionKey[] functionKeys;
+
+    // True if the plugin registers text handlers.
+    private final boolean handlers;
+
+    // Handlers the plugin registered for the declared buttons and keys.
+    private final Map<String, EventHandler> boundButtons = new HashMap<>();
+    private final Map<FunctionKey, EventHandler> boundKeys = new EnumMap<>(FunctionKey.class);
+
+    // True once the plugin has been started (or has failed to start).
+    private volatile boolean activated = false;
+
+    /**
+     * Constructor.
+     *
+     * @param manager Manager of the plugin.
+     * @param type The plugin class.
+     * @param descriptor Its descriptor.
+     * @param api The API.
+     */
+    PluginPlaceholder(PluginManager manager, Class<?> type, PluginDescriptor descriptor, TextEditorAPI api) {
+        this.manager = manager;
+        this.type = type;
+        this.api = api;
+        this.functionKeys = descriptor.functionKeys();
+        this.handlers = descriptor.handlers();
+
+        ResourceBundle bundle = descriptor.bundle().isEmpty()
+            ? null
+            : ResourceBundle.getBundle(descriptor.bundle(), api.getLocale(), type.getClassLoader());
+
+        this.name = localise(bundle, descriptor.name());
+        this.buttons = new String[descriptor.buttons().length];
+        for (int i = 0; i < buttons.length; i++) {
+            buttons[i] = localise(bundle, descriptor.buttons()[i]);
+        }
+    }
+
+    /**
+     *
+     * @param descriptor A plugin descriptor, or null.
+     * @return True if the descriptor declares anything the plugin can be
+     *         started on.
+     */
+    static boolean isLazy(PluginDescriptor descriptor) {
+        return descriptor != null
+            && (descriptor.buttons().length > 0 || descriptor.functionKeys().length > 0 || descriptor.handlers());
+    }
+
+    /**
+     *
+     * @return Localised name of the plugin.
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     *
+     * @return True once the plugin has been started (or has failed to start).
+     */
+    boolean isActivated() {
+        return activated;
+    }
+
+    /**
+     * Register the declared buttons, function keys and handlers.
+     */
+    void register() {
+        for (String label : buttons) {
+            api.registerButton(label, () -> {
+                activate();
+                EventHandler h = bound(boundButtons, label);
+                if (h != null) {
+                    h.onEvent();
+                }
+            });
+        }
+
+        for (FunctionKey key : functionKeys) {
+            api.registerOnFunctionKeyEvent(key, () -> {
+                activate();
+                EventHandler h = bound(boundKeys, key);
+                if (h != null) {
+                    h.onEvent();
+                }
+            });
+        }
+
+        if (handlers) {
+            // Started once the change has been delivered, since the plugin
+            // registers handlers of its own.
+            api.registerTextChangeHandler(change -> {
+                if (!activated) {
+                    Platform.runLater(this::activate);
+                }
+            });
+        }
+    }
+
+    /**
+     * Create and start the plugin, if it has not been started (application
+     * thread).
+     */
+    private void activate() {
+        if (activated) {
+            return;
+        }
+        activated = true;
+
+        try {
+            TextEditorPlugin plugin = manager.instantiate(type);
+            plugin.start(binder());
+            manager.activated(plugin);
+        } catch (PluginLoadFailedException e) {
+            manager.reportError(type.getName() + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            manager.reportError(type.getName() + ": " + e);
+        }
+    }
+
+    /**
+     *
+     * @return The API, binding the plugin's handlers for the declared
+     *         buttons and keys to the placeholder's.
+     */
+    private TextEditorAPI binder() {
+        return (TextEditorAPI)Proxy.newProxyInstance(
+            TextEditorAPI.class.getClassLoader(), new Class<?>[] { TextEditorAPI.class }, (proxy, method, args) -> {
+                if (method.getName().equals("registerButton")
+                        && bind(boundButtons, buttons, (String)args[0], (EventHandler)args[1])) {
+                    return null;
+                }
+
+                if (method.getName().equals("registerOnFunctionKeyEvent")
+                        && bind(boundKeys, functionKeys, (FunctionKey)args[0], (EventHandler)args[1])) {
+                    return null;
+                }
+
+                try {
+                    return method.invoke(api, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        );
+    }
+
+    /**
+     * Bind a handler to a declared button or key, if it is one and has no
+     * handler yet.
+     *
+     * @return True if the handler was bound.
+     */
+    private static <K> boolean bind(Map<K, EventHandler> bound, K[] declared, K key, EventHandler handler) {
+        synchronized (bound) {
+            for (K k : declared) {
+                if (k.equals(key) && !bound.containsKey(key)) {
+                    bound.put(key, handler);
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private static <K> EventHandler bound(Map<K, EventHandler> bound, K key) {
+        synchronized (bound) {
+            return bound.get(key);
+        }
+    }
+
+    private static String localise(ResourceBundle bundle, String key) {
+        return (bundle != null) ? bundle.getString(key) : key;
+    }
+}
@@ -0,0 +1,284 @@
+package texteditor.app.plugins;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javafx.application.Platform;
+import texteditor.api.SearchHandler;
+import texteditor.api.TextChange;
+import texteditor.api.TextRange;
+import texteditor.app.model.PieceTable;
+
+/**
+ * Regular expression search over a snapshot of the document, on a worker
+ * thread.
+ *
+ * Matches are handed to the application thread in batches as they are
+ * found. Edits made to the document while the search runs are recorded,
+ * and each match is moved to follow them before it is delivered (or
+ * dropped, if it was edited). Cancelling the search stops the matcher
+ * within a few thousand characters, even in the middle of a match.
+ *
+ * @author Ryan Martin
+ */
+class RegexSearch implements Runnable {
+
+    // Maximum number of matches in a batch.
+    private static final int BATCH_SIZE = 1000;
+
+    // Maximum time a match waits for the rest of its batch (ms).
+    private static final long BATCH_DELAY = 50;
+
+    // The pattern.
+    private final Pattern pattern;
+
+    // Snapshot of the document.
+    private final PieceTable text;
+
+    // Receives the matches.
+    private final SearchHandler handler;
+
+    // Batches waiting for the application thread.
+    private final Queue<List<TextRange>> batches = new ConcurrentLinkedQueue<>();
+
+    // True while a drain is scheduled on the application thread.
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+
+    // Changes to the document since the snapshot (application thread).
+    private final List<TextChange> changes = new ArrayList<>();
+
+    // True once cancelled.
+    private volatile boolean cancelled = false;
+
+    // Number of matches found, set once the whole text has been searched.
+    private volatile int total = -1;
+
+    // True once the search has completed and every match was delivered
+    // (application thread).
+    private boolean finished = false;
+
+    /**
+     * Constructor.
+     *
+     * @param pattern The pattern.
+     * @param text Snapshot of the document.
+     * @param handler Receives the matches.
+     */
+    RegexSearch(Pattern pattern, PieceTable text, SearchHandler handler) {
+        this.pattern = pattern;
+        this.text = text;
+        this.handler = handler;
+    }
+
+    /**
+     * Start searching on a new daemon thread.
+     */
+    void start() {
+        Thread thread = new Thread(this, "regex-search");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop searching. No more matches are delivered.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Record a change to the document (application thread).
+     *
+     * @param change The change.
+     */
+    void onTextChanged(TextChange change) {
+        if (!finished && !cancelled) {
+            changes.add(change);
+        }
+    }
+
+    @Override
+    public void run() {
+        Matcher matcher = pattern.matcher(new CancellableText());
+        List<TextRange> batch = new ArrayList<>();
+        long batchStart = System.currentTimeMillis();
+        int count = 0;
+
+        try {
+            while (matcher.find()) {
+                batch.add(new TextRange(matcher.start(), matcher.end()));
+                count++;
+
+                if (batch.size() == BATCH_SIZE || System.currentTimeMillis() - batchStart > BATCH_DELAY) {
+                    publish(batch);
+                    batch = new ArrayList<>();
+                    batchStart = System.currentTimeMillis();
+                }
+            }
+        } catch (CancellationException e) {
+            return;
+        } catch (RuntimeException | StackOverflowError e) {
+            // I.e., the file changed under a mapped document, or the pattern
+            // backtracked too deeply. The search completes with the matches
+            // found so far.
+            e.printStackTrace();
+        }
+
+        if (!batch.isEmpty()) {
+            publish(batch);
+        }
+
+        total = count;
+        scheduleDrain();
+    }
+
+    /**
+     * Queue a batch for the application thread.
+     *
+     * @param batch The batch.
+     */
+    private void publish(List<TextRange> batch) {
+        batches.add(batch);
+        scheduleDrain();
+    }
+
+    /**
+     * Schedule a drain on the application thread, unless one is already scheduled.
+     */
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            Platform.runLater(this::drain);
+        }
+    }
+
+    /**
+     * Deliver the queued batches (application thread).
+     */
+    private void drain() {
+        drainScheduled.set(false);
+
+        // Read before draining, so no batch queued before completion is missed.
+        int count = total;
+
+        List<TextRange> batch;
+        while (!cancelled && (batch = batches.poll()) != null) {
+            List<TextRange> mapped = map(batch);
+            if (!mapped.isEmpty()) {
+                handler.onMatches(mapped);
+            }
+        }
+
+        if (count >= 0 && !cancelled && !finished) {
+            finished = true;
+            changes.clear();
+            handler.onSearchComplete(count);
+        }
+    }
+
+    /**
+     * Move matches to follow the changes made since the snapshot.
+     *
+     * @param batch Matches in the snapshot.
+     * @return Matches in the current document.
+     */
+    private List<TextRange> map(List<TextRange> batch) {
+        if (changes.isEmpty()) {
+            return batch;
+        }
+
+        List<TextRange> mapped = new ArrayList<>(batch.size());
+
+        for (TextRange r : batch) {
+            int start = r.getStart();
+            int end = r.getEnd();
+            boolean edited = false;
+
+            for (Iterator<TextChange> it = changes.iterator(); it.hasNext() && !edited; ) {
+                TextChange c = it.next();
+                int removedEnd = c.getOffset() + c.getRemovedText().length();
+
+                if (end <= c.getOffset() && start < c.getOffset()) {
+                    // The match is before the change.
+                } else if (start >= removedEnd) {
+                    int delta = c.getInsertedText().length() - c.getRemovedText().length();
+                    start += delta;
+                    end += delta;
+                } else {
+                    edited = true;
+                }
+            }
+
+            if (!edited) {
+                mapped.add(new TextRange(start, end));
+            }
+        }
+
+        return mapped;
+    }
+
+    /**
+     * The snapshot as seen by the matcher. Characters are copied out of
+     * the snapshot a window at a time, and cancellation is checked every
+     * few thousand reads.
+     */
+    private final class CancellableText implements CharSequence {
+
+        // Size of the window.
+        private static final int WINDOW = 1 << 16;
+
+        // Characters read before checking for cancellation.
+        private static final int CHECK_INTERVAL = 1 << 12;
+
+        // Characters of the window.
+        private final char[] window = new char[WINDOW];
+
+        // Start and end of the window.
+        private int windowStart = 0;
+        private int windowEnd = 0;
+
+        // Reads left until the next cancellation check.
+        private int untilCheck = CHECK_INTERVAL;
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (--untilCheck == 0) {
+                untilCheck = CHECK_INTERVAL;
+                if (cancelled) {
+                    throw new CancellationException();
+                }
+            }
+
+            if (index < windowStart || index >= windowEnd) {
+                // Keep some text before the index in the window, for
+                // backtracking and lookbehind.
+                windowStart = Math.max(0, Math.min(index - WINDOW / 8, text.length() - WINDOW));
+                windowEnd = Math.min(text.length(), windowStart + WINDOW);
+                text.getChars(windowStart, windowEnd, window, 0);
+            }
+
+            return window[index - windowStart];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return text.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return text.toString();
+        }
+    }
+}
@@ -1,10 +1,25 @@
 package texteditor.app.plugins;
 
+import org.python.core.Py;
+import org.python.core.PyCode;
+import org.python.core.ThreadState;
 import org.python.util.PythonInterpreter;
 
+import java.util.ArrayDeque;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import texteditor.api.TextEditorAPI;
 import texteditor.app.io.ScriptLoader;
@@ -12,17 +27,83 @@ import texteditor.app.model.PyScript;
 
 /**
  * Loads and contains scripts. 
+ * 
+ * Scripts run in interpreters from a pool that is filled in the 
+ * background from startup, and each script's source is only compiled 
+ * once (compiled code is cached by the hash of the source), so running 
+ * a script does not wait for Jython to start or recompile. 
+ * 
+ * Scripts are run on low-priority threads, a small, fixed number at a 
+ * time; further scripts wait for a running one to stop, so scripts never 
+ * occupy more than that many cores. A script still running after the 
+ * time-out is stopped at its next line of Python (see ScriptTimeout), 
+ * and its place is given to the next waiting script straight away, so a 
+ * script stuck where it cannot be stopped does not hold up the others. 
+ * The CPU time and memory each script and its callbacks use are 
+ * measured (see ScriptStats). 
+ * 
  * @author Ryan Martin
  */
 public class ScriptManager {
 
+    // Maximum number of scripts running at once. 
+    private static final int MAX_RUNNING = 2;
+
+    // Default time a script may run for (ms). 
+    public static final long DEFAULT_TIMEOUT = 10_000;
+
     // List of Python scripts. 
-    private final List<PyScript> scripts = new LinkedList<>();
+    private final CopyOnWriteArrayList<PyScript> scripts = new CopyOnWriteArrayList<>();
+
+    // Resources used by each script, by script name. 
+    private final Map<String, ScriptStats> stats = new ConcurrentHashMap<>();
+
+    // Interpreters for the scripts. 
+    private final InterpreterPool interpreters = new InterpreterPool();
+
+    // Compiled scripts, by the hash of their source. 
+    private final Map<String, PyCode> compiled = new ConcurrentHashMap<>();
+
+    // Threads running the scripts (a thread stuck in a timed out script is 
+    // replaced, rather than waited for). 
+    private final ExecutorService executor = 
+        Executors.newCachedThreadPool(daemonThreads("script-runner-", Thread.MIN_PRIORITY));
+
+    // Scripts waiting to run, and the number running (not timed out). 
+    private final Queue<Runnable> queued = new ArrayDeque<>();
+    private int running = 0;
+
+    // Stops scripts that run for too long. 
+    private final ScheduledExecutorService watchdog = 
+        Executors.newSingleThreadScheduledExecutor(daemonThreads("script-watchdog-", Thread.NORM_PRIORITY));
+
+    // Time a script may run for (ms). 
+    private volatile long timeout = DEFAULT_TIMEOUT;
+
+    // Measures the callbacks the scripts register. 
+    private final CallbackMonitor monitor;
     
-    public ScriptManager() { }
+    /**
+     * Constructor. 
+     * 
+     * @param monitor Measures the callbacks the scripts register. 
+     */
+    public ScriptManager(CallbackMonitor monitor) { 
+        this.monitor = monitor;
+        interpreters.start();
+    }
+
+    /**
+     * Set the time a script may run for before it is stopped. 
+     * 
+     * @param millis Time-out (ms). 
+     */
+    public void setTimeout(long millis) {
+        timeout = millis;
+    }
 
     /**
-     * Load a script and run it immediately. 
+     * Load a script and run it as soon as a script thread is free. 
      * 
      * @param fileName Name of the script file. 
      * @param api API for the script to use. 
@@ -30,13 +111,11 @@ public class ScriptManager {
      */
     public void loadScript(String fileName, TextEditorAPI api) throws IOException {
         PyScript script = ScriptLoader.loadScript(fileName); 
-        if (script != null) {
-            new Thread(() -> {
-                if (!scripts.contains(script)) {
-                    scripts.add(script);
-                    runScript(script, api);
-                }
-            }, "script-loader-" + script.getScriptName()).start();
+        if (script != null && scripts.addIfAbsent(script)) {
+            ScriptStats scriptStats = new ScriptStats(monitor, script.getScriptName());
+            stats.put(script.getScriptName(), scriptStats);
+
+            schedule(() -> runScript(script, api, scriptStats));
         }
     }
 
@@ -49,15 +128,114 @@ public class ScriptManager {
     }
 
     /**
-     * Run the script using the Python interpreter. 
+     * 
+     * @param script A script. 
+     * @return Resources used by the script, or null if it was not loaded. 
+     */
+    public ScriptStats getStats(PyScript script) {
+        return stats.get(script.getScriptName());
+    }
+
+    /**
+     * Run a script once fewer than the maximum number are running. 
+     * 
+     * @param run Runs the script, and then calls finished(). 
+     */
+    private synchronized void schedule(Runnable run) {
+        queued.add(run);
+        startQueued();
+    }
+
+    /**
+     * A script stopped or timed out: start the next waiting script. 
+     */
+    private synchronized void finished() {
+        running--;
+        startQueued();
+    }
+
+    private synchronized void startQueued() {
+        while (running < MAX_RUNNING && !queued.isEmpty()) {
+            running++;
+            executor.execute(queued.remove());
+        }
+    }
+
+    /**
+     * Run the script using the Python interpreter (script thread). 
      * 
      * @param pyScript Script
      * @param api API for the script to use. 
+     * @param scriptStats Receives the resources used by the script. 
      */
-    private void runScript(PyScript pyScript, TextEditorAPI api) {
-        try (PythonInterpreter interpreter = new PythonInterpreter()) {
-            interpreter.set("api", api);
-            interpreter.exec(pyScript.getSrc());
+    private void runScript(PyScript pyScript, TextEditorAPI api, ScriptStats scriptStats) {
+        // Its place is given up once, when it stops or times out. 
+        AtomicBoolean done = new AtomicBoolean();
+        Runnable finish = () -> {
+            if (done.compareAndSet(false, true)) {
+                finished();
+            }
+        };
+
+        PythonInterpreter pooled;
+        try {
+            pooled = interpreters.take();
+        } catch (InterruptedException e) {
+            finish.run();
+            Thread.currentThread().interrupt();
+            return;
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+            scriptStats.fail();
+            finish.run();
+            return;
         }
+
+        boolean failed = true;
+        scriptStats.start();
+        ScheduledFuture<?> timer = watchdog.schedule(() -> {
+            scriptStats.timeOut();
+            finish.run();
+        }, timeout, TimeUnit.MILLISECONDS);
+
+        ThreadState thread = Py.getThreadState();
+        thread.tracefunc = new ScriptTimeout(scriptStats);
+
+        try (PythonInterpreter interpreter = pooled) {
+            PyCode code = compiled.computeIfAbsent(pyScript.getSrcHash(), 
+                hash -> interpreter.compile(pyScript.getSrc(), pyScript.getScriptName()));
+
+            interpreter.set("api", monitor.instrument(api, pyScript.getScriptName()));
+            interpreter.exec(code);
+            failed = false;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            thread.tracefunc = null;
+            timer.cancel(false);
+            scriptStats.stop(failed);
+            finish.run();
+
+            // Don't pass a time-out on to the next script. 
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Create a factory for named daemon threads. 
+     * 
+     * @param prefix Thread name prefix. 
+     * @param priority Thread priority. 
+     * @return The thread factory. 
+     */
+    static ThreadFactory daemonThreads(String prefix, int priority) {
+        AtomicInteger count = new AtomicInteger();
+
+        return runnable -> {
+            Thread t = new Thread(runnable, prefix + count.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(priority);
+            return t;
+        };
     }
 }
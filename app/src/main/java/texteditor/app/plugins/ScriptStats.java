@@ -0,0 +1,146 @@
+package texteditor.app.plugins;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Resources used by a script: CPU time and allocated memory, measured on
+ * the script's thread with the JVM's thread MXBean while it runs (read
+ * live until it stops), plus those of the callbacks it registered, which
+ * are measured wherever they are called (see CallbackMonitor).
+ *
+ * @author Ryan Martin
+ */
+public class ScriptStats {
+
+    /**
+     * Where the script is up to.
+     */
+    public enum State { QUEUED, RUNNING, FINISHED, TIMED_OUT, FAILED }
+
+    // Thread CPU time and allocation counters.
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    // The same, if allocation can be measured (HotSpot), or null.
+    private static final com.sun.management.ThreadMXBean ALLOCATION =
+        (THREADS instanceof com.sun.management.ThreadMXBean) ? (com.sun.management.ThreadMXBean)THREADS : null;
+
+    // Measures the callbacks the script registers, and the script's name.
+    private final CallbackMonitor monitor;
+    private final String owner;
+
+    // State of the script.
+    private State state = State.QUEUED;
+
+    // True once the script has timed out (read at every line it runs).
+    private volatile boolean timedOut = false;
+
+    // Thread running the script.
+    private Thread thread = null;
+
+    // Counters when the script started, and totals once it stopped.
+    private long startCpuTime = 0;
+    private long startAllocated = 0;
+    private long cpuTime = 0;
+    private long allocated = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param monitor Measures the callbacks the script registers.
+     * @param owner Name of the script.
+     */
+    ScriptStats(CallbackMonitor monitor, String owner) {
+        this.monitor = monitor;
+        this.owner = owner;
+    }
+
+    /**
+     *
+     * @return State of the script.
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     *
+     * @return CPU time used by the script and its callbacks (ns), or 0 if
+     *         it cannot be measured.
+     */
+    public synchronized long getCpuTime() {
+        return ((thread != null) ? cpuTime() - startCpuTime : cpuTime) + monitor.getCpuTime(owner);
+    }
+
+    /**
+     *
+     * @return Memory allocated by the script and its callbacks (bytes), or
+     *         0 if it cannot be measured.
+     */
+    public synchronized long getAllocatedBytes() {
+        return ((thread != null) ? allocated() - startAllocated : allocated) + monitor.getAllocatedBytes(owner);
+    }
+
+    /**
+     *
+     * @return True once the script has timed out.
+     */
+    boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * Start measuring (script thread).
+     */
+    synchronized void start() {
+        thread = Thread.currentThread();
+        startCpuTime = cpuTime();
+        startAllocated = allocated();
+        state = State.RUNNING;
+    }
+
+    /**
+     * The script could not be run.
+     */
+    synchronized void fail() {
+        state = State.FAILED;
+    }
+
+    /**
+     * Stop measuring (script thread). Once this returns, the thread is not
+     * interrupted by a time-out.
+     *
+     * @param failed True if the script threw an exception.
+     */
+    synchronized void stop(boolean failed) {
+        cpuTime = cpuTime() - startCpuTime;
+        allocated = allocated() - startAllocated;
+        thread = null;
+
+        if (state == State.RUNNING) {
+            state = failed ? State.FAILED : State.FINISHED;
+        }
+    }
+
+    /**
+     * Stop the script, if it is still running: it is interrupted (in case
+     * it is waiting), and stopped at its next line (see ScriptTimeout).
+     */
+    synchronized void timeOut() {
+        if (state == State.RUNNING) {
+            state = State.TIMED_OUT;
+            timedOut = true;
+            thread.interrupt();
+        }
+    }
+
+    private long cpuTime() {
+        return THREADS.isThreadCpuTimeSupported() ? Math.max(0, THREADS.getThreadCpuTime(thread.getId())) : 0;
+    }
+
+    private long allocated() {
+        return (ALLOCATION != null && ALLOCATION.isThreadAllocatedMemorySupported())
+            ? Math.max(0, ALLOCATION.getThreadAllocatedBytes(thread.getId()))
+            : 0;
+    }
+}
@@ -0,0 +1,65 @@
+package texteditor.app.plugins;
+
+import org.python.core.Py;
+import org.python.core.PyException;
+import org.python.core.PyFrame;
+import org.python.core.PyObject;
+import org.python.core.TraceFunction;
+
+/**
+ * Stops a script once it has timed out.
+ *
+ * Installed as the trace function of the script's thread, so Jython calls
+ * it at every call and line of Python code the script runs; a script
+ * stuck in a loop is stopped at its next line, whether or not it checks
+ * for interrupts. The script is stopped with a KeyboardInterrupt (which
+ * "except Exception" does not catch), raised again at every line that
+ * follows, so catching it does not keep the script running.
+ *
+ * A script stuck inside a single call into Java (i.e., a builtin working
+ * on a huge value) is only stopped once that call returns.
+ *
+ * @author Ryan Martin
+ */
+class ScriptTimeout extends TraceFunction {
+
+    // Resources and state of the script.
+    private final ScriptStats stats;
+
+    /**
+     * Constructor.
+     *
+     * @param stats Resources and state of the script.
+     */
+    ScriptTimeout(ScriptStats stats) {
+        this.stats = stats;
+    }
+
+    @Override
+    public TraceFunction traceCall(PyFrame frame) {
+        check();
+        return this;
+    }
+
+    @Override
+    public TraceFunction traceReturn(PyFrame frame, PyObject ret) {
+        return this;
+    }
+
+    @Override
+    public TraceFunction traceLine(PyFrame frame, int line) {
+        check();
+        return this;
+    }
+
+    @Override
+    public TraceFunction traceException(PyFrame frame, PyException exc) {
+        return this;
+    }
+
+    private void check() {
+        if (stats.isTimedOut()) {
+            throw new PyException(Py.KeyboardInterrupt, "script timed out");
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package texteditor.app.plugins;
+
+import java.util.List;
+
+import texteditor.api.TextChange;
+import texteditor.api.TextChangeHandler;
+import texteditor.api.TextModificationHandler;
+import texteditor.app.model.PieceTable;
+
+/**
+ * Adapts a handler using the full-text TextModificationHandler signature 
+ * to text change events. The full text is only built when at least one 
+ * of these handlers is registered. 
+ * 
+ * When delivered asynchronously, a batch of changes is reported as one 
+ * modification, from the text before the first change to the text after 
+ * the last, using snapshots of the document. 
+ * @author Ryan Martin
+ */
+class TextModificationAdapter implements TextChangeHandler {
+
+    // The adapted handler. 
+    private final TextModificationHandler handler;
+
+    // The API, which builds the full text. 
+    private final Editor editor;
+
+    // Document as of the last modification reported asynchronously. 
+    private PieceTable before = null;
+
+    /**
+     * Constructor. 
+     * 
+     * @param handler The adapted handler. 
+     * @param editor The API. 
+     */
+    TextModificationAdapter(TextModificationHandler handler, Editor editor) {
+        this.handler = handler;
+        this.editor = editor;
+    }
+
+    /**
+     * Prepare for asynchronous delivery, starting from the current text. 
+     * 
+     * @return This adapter. 
+     */
+    TextModificationAdapter async() {
+        before = editor.takeSnapshot().getDocument();
+        return this;
+    }
+
+    /**
+     * 
+     * @return Snapshot of the document (application thread). 
+     */
+    PieceTable takeSnapshot() {
+        return editor.takeSnapshot().getDocument();
+    }
+
+    /**
+     * Report a batch of changes as one modification (worker thread). 
+     * 
+     * @param changes The changes. 
+     * @param after Snapshot of the document after the last change. 
+     */
+    void onTextChanges(List<TextChange> changes, PieceTable after) {
+        PieceTable prev = before;
+        before = after;
+
+        handler.onTextModified(prev.toString(), after.toString());
+    }
+
+    /**
+     * Build the full text for a change ahead of delivery, so a handler 
+     * held to the time budget is timed without it (application thread). 
+     * The text is shared with the other handlers, so it is not built again. 
+     * 
+     * @param change The change. 
+     */
+    void prepare(TextChange change) {
+        editor.getFullText(change);
+    }
+
+    @Override
+    public void onTextChanged(TextChange change) {
+        String[] text = editor.getFullText(change);
+
+        if (text != null) {
+            handler.onTextModified(text[0], text[1]);
+        }
+    }
+}
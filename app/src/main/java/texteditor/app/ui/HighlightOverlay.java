@@ -0,0 +1,124 @@
+package texteditor.app.ui;
+
+import javafx.application.Platform;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.control.TextArea;
+import javafx.scene.control.skin.TextAreaSkin;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Rectangle;
+import texteditor.app.plugins.Editor;
+
+/**
+ * Draws the editor's highlights over the text area.
+ *
+ * Only the highlights overlapping the visible part of the text are
+ * looked up and drawn, so redrawing takes the same time however many
+ * highlights there are and however large the text is. The overlay is
+ * redrawn (once per pulse at most) when the text area scrolls, resizes
+ * or changes.
+ *
+ * @author Ryan Martin
+ */
+public class HighlightOverlay extends Pane {
+
+    // Highlight colour.
+    private static final Color FILL = Color.rgb(255, 200, 0, 0.35);
+
+    // The text area.
+    private final TextArea textArea;
+
+    // The API, which holds the highlights.
+    private final Editor editor;
+
+    // True while a redraw is scheduled.
+    private boolean redrawScheduled = false;
+
+    /**
+     * Constructor.
+     *
+     * @param textArea The text area.
+     * @param editor The API.
+     */
+    public HighlightOverlay(TextArea textArea, Editor editor) {
+        this.textArea = textArea;
+        this.editor = editor;
+
+        setMouseTransparent(true);
+
+        textArea.textProperty().addListener(observable -> requestRedraw());
+        textArea.scrollTopProperty().addListener(observable -> requestRedraw());
+        textArea.scrollLeftProperty().addListener(observable -> requestRedraw());
+        textArea.widthProperty().addListener(observable -> requestRedraw());
+        textArea.heightProperty().addListener(observable -> requestRedraw());
+    }
+
+    /**
+     * Redraw the highlights once the text area has been laid out.
+     */
+    public void requestRedraw() {
+        if (!redrawScheduled) {
+            redrawScheduled = true;
+            Platform.runLater(this::redraw);
+        }
+    }
+
+    /**
+     * Draw the highlights overlapping the visible lines.
+     */
+    private void redraw() {
+        redrawScheduled = false;
+        getChildren().clear();
+
+        if (!(textArea.getSkin() instanceof TextAreaSkin) || textArea.getLength() == 0) {
+            return;
+        }
+
+        TextAreaSkin skin = (TextAreaSkin)textArea.getSkin();
+
+        // Characters at the top left and bottom right corners.
+        int topLeft = skin.getIndex(0, 0).getInsertionIndex();
+        int bottomRight = skin.getIndex(getWidth(), getHeight()).getInsertionIndex();
+
+        // Whole lines, in case the text area is scrolled sideways.
+        int from = editor.getLineStart(editor.getLineOfOffset(topLeft));
+        int lastLine = editor.getLineOfOffset(bottomRight);
+        int to = (lastLine + 1 < editor.getLineCount()) ? editor.getLineStart(lastLine + 1) : editor.getTextLength();
+
+        editor.forEachHighlight(from, to, (start, end) -> {
+            int s = Math.max(start, from);
+            int e = Math.min(end, to);
+
+            // One rectangle per line.
+            int line = editor.getLineOfOffset(s);
+            while (s < e) {
+                int lineEnd = (line + 1 < editor.getLineCount()) ? editor.getLineStart(line + 1) - 1 : editor.getTextLength();
+                int segEnd = Math.min(e, lineEnd);
+
+                if (segEnd > s) {
+                    drawSegment(skin, s, segEnd);
+                }
+
+                s = lineEnd + 1;
+                line++;
+            }
+        });
+    }
+
+    /**
+     * Draw a highlight within one line.
+     *
+     * @param skin The text area's skin.
+     * @param start Start index (inclusive).
+     * @param end End index (exclusive).
+     */
+    private void drawSegment(TextAreaSkin skin, int start, int end) {
+        Rectangle2D first = skin.getCharacterBounds(start);
+        Rectangle2D last = skin.getCharacterBounds(end - 1);
+
+        Rectangle r = new Rectangle(first.getMinX(), first.getMinY(), last.getMaxX() - first.getMinX(), first.getHeight());
+        r.setFill(FILL);
+
+        getChildren().add(r);
+    }
+}
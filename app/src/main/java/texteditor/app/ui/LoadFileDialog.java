@@ -7,6 +7,7 @@ import java.util.ResourceBundle;
 import javafx.stage.FileChooser;
 import javafx.stage.Window;
 import texteditor.app.io.FileIO;
+import texteditor.app.io.MappedText;
 
 /**
  * Dialog window for loading a file. 
@@ -34,20 +35,21 @@ public class LoadFileDialog {
     }
     
     /**
-     * Show the dialog and return the file data as a string. 
+     * Show the dialog and return the file data as text. 
+     * The file is memory-mapped and decoded lazily. 
      * 
-     * @return Encoded file string. 
+     * @return Decoded file text, or null if cancelled. 
      * @throws IOException If an IO error occurs. 
      */
-    public String show() throws IOException {
-        String data = null;
+    public MappedText show() throws IOException {
+        MappedText data = null;
 
         String encoding = new EncodingSelectionDialog(bundle).show();
         FileChooser fc = new FileChooser(); 
-        File file = fc.showOpenDialog(owner);
+        File file = (encoding != null) ? fc.showOpenDialog(owner) : null;
 
         if (file != null) {
-            data = FileIO.loadFile(file.getAbsolutePath(), encoding);
+            data = FileIO.mapFile(file.getAbsolutePath(), encoding);
         }
 
         return data;
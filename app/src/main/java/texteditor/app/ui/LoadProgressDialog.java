@@ -0,0 +1,65 @@
+package texteditor.app.ui;
+
+import java.util.ResourceBundle;
+
+import javafx.concurrent.Task;
+import javafx.scene.control.ButtonType;
+import javafx.scene.control.Dialog;
+import javafx.scene.control.ProgressBar;
+import javafx.stage.Window;
+
+/**
+ * Shows the progress of a background file load, and lets the user 
+ * cancel it. The dialog does not block the rest of the UI. 
+ * 
+ * @author Ryan Martin
+ */
+public class LoadProgressDialog {
+
+    // Owner window. 
+    private final Window owner; 
+
+    // Resource bundle for localisation. 
+    private final ResourceBundle bundle; 
+
+    /**
+     * Constructor. 
+     * 
+     * @param owner Owner window. 
+     * @param bundle Resource bundle for localisation. 
+     */
+    public LoadProgressDialog(Window owner, ResourceBundle bundle) {
+        this.owner = owner; 
+        this.bundle = bundle; 
+    }
+
+    /**
+     * Show the dialog for a task. The dialog closes when the task 
+     * finishes, and closing the dialog cancels the task. 
+     * 
+     * @param task The load task. 
+     */
+    public void show(Task<?> task) {
+        Dialog<Void> dialog = new Dialog<>();
+        ProgressBar progressBar = new ProgressBar(0);
+
+        progressBar.setPrefWidth(300.0);
+        progressBar.progressProperty().bind(task.progressProperty());
+
+        dialog.initOwner(owner);
+        dialog.setTitle(bundle.getString("loading_title"));
+        dialog.setHeaderText(bundle.getString("loading_header"));
+        dialog.getDialogPane().setContent(progressBar);
+        dialog.getDialogPane().getButtonTypes().add(ButtonType.CANCEL);
+
+        // Cancelling a task that has already finished has no effect. 
+        dialog.setOnHidden(event -> task.cancel());
+        task.runningProperty().addListener((object, oldValue, running) -> {
+            if (!running) {
+                dialog.close();
+            }
+        });
+
+        dialog.show();
+    }
+}
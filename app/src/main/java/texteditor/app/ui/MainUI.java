@@ -1,6 +1,8 @@
 package texteditor.app.ui;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.EnumMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -9,20 +11,30 @@ import java.util.ResourceBundle;
 
 import texteditor.api.EventHandler;
 import texteditor.api.FunctionKey;
-import texteditor.api.TextModificationHandler;
+import texteditor.api.TextChange;
+import texteditor.api.TextChangeHandler;
+import texteditor.app.io.EditJournal;
+import texteditor.app.io.FileLoadTask;
+import texteditor.app.io.MappedText;
 import texteditor.app.model.*;
 import texteditor.app.model.KeyAction.*;
+import texteditor.app.plugins.CallbackMonitor;
 import texteditor.app.plugins.Editor;
 import texteditor.app.plugins.PluginManager;
 import texteditor.app.plugins.ScriptManager;
 
+import javafx.application.Platform;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
+import javafx.scene.control.ContextMenu;
+import javafx.scene.control.MenuItem;
 import javafx.scene.control.Separator;
+import javafx.scene.control.SeparatorMenuItem;
 import javafx.scene.control.TextArea;
 import javafx.scene.control.ToolBar;
 import javafx.scene.control.Alert.AlertType;
 import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.StackPane;
 import javafx.scene.Scene;
 import javafx.scene.input.KeyCode;
 import javafx.stage.Stage;
@@ -39,18 +51,31 @@ import javafx.stage.Stage;
  */
 public class MainUI {
 
-    // List of key mappings from the keymap file. 
-    private List<KeyMapping> keyMap;
+    // Key mappings from the keymap file, compiled into a lookup table. 
+    private KeyMapTable keyMap;
 
     // The tool bar containing the buttons.
     private ToolBar toolBar = new ToolBar();
 
+    // The load and save buttons, disabled while a file is loading. 
+    private Button loadBtn = null;
+    private Button saveBtn = null;
+
+    // Background load in progress, or null. 
+    private FileLoadTask loadTask = null;
+
     // The API.
     private final Editor editor;
 
     // The main text area. 
     private final TextArea textArea = new TextArea();
 
+    // Highlights drawn over the text area. 
+    private HighlightOverlay highlightOverlay = null;
+
+    // Journal of edits for crash recovery, or null. 
+    private EditJournal journal = null;
+
     // Resource bundle for languages. 
     private final ResourceBundle bundle;
 
@@ -60,11 +85,14 @@ public class MainUI {
     // Script manager. 
     private final ScriptManager scriptManager;
 
+    // Measures the callbacks of the plugins and scripts. 
+    private final CallbackMonitor monitor;
+
     // Locale. 
     private final Locale locale;
 
-    // List of text modification handlers. 
-    private final List<TextModificationHandler> tmHandlers = new LinkedList<>();
+    // List of text change handlers. 
+    private final List<TextChangeHandler> tcHandlers = new LinkedList<>();
 
     // Map of function key handlers. 
     private final EnumMap<FunctionKey, EventHandler> fnHandlers = new EnumMap<>(FunctionKey.class);
@@ -78,14 +106,16 @@ public class MainUI {
      * @param bundle Resource bundle for languages. 
      * @param pluginManager Plugin manager.
      * @param scriptManager Script manager.
+     * @param monitor Measures the callbacks of the plugins and scripts.
      */
-    public MainUI(ResourceBundle bundle, PluginManager pluginManager, ScriptManager scriptManager) {
+    public MainUI(ResourceBundle bundle, PluginManager pluginManager, ScriptManager scriptManager, CallbackMonitor monitor) {
         // Initialise the API. 
         this.editor = new Editor(this);
 
         this.bundle = bundle; 
         this.pluginManager = pluginManager; 
         this.scriptManager = scriptManager;
+        this.monitor = monitor;
 
         this.locale = bundle.getLocale();
     }
@@ -101,8 +131,8 @@ public class MainUI {
         stage.setMinWidth(800);
 
         // Create toolbar
-        Button saveBtn = new Button(bundle.getString("save") + "..."); 
-        Button loadBtn = new Button(bundle.getString("load") + "...");
+        saveBtn = new Button(bundle.getString("save") + "..."); 
+        loadBtn = new Button(bundle.getString("load") + "...");
         Button pluginsBtn = new Button(bundle.getString("plugins_scripts") + "...");
         toolBar = new ToolBar(loadBtn, saveBtn, new Separator(), pluginsBtn, new Separator());
 
@@ -110,16 +140,28 @@ public class MainUI {
         toolBar.setFocusTraversable(false);
         toolBar.getItems().forEach(btn -> btn.setFocusTraversable(false));
         textArea.setStyle("-fx-font-family: 'monospace'"); // Set the font
+        textArea.setContextMenu(createContextMenu());
         
         // Add the main parts of the UI to the window.
         BorderPane mainBox = new BorderPane();
         mainBox.setTop(toolBar);
-        mainBox.setCenter(textArea);
+        highlightOverlay = new HighlightOverlay(textArea, editor);
+        mainBox.setCenter(new StackPane(textArea, highlightOverlay));
         Scene scene = new Scene(mainBox);
 
         saveBtn.setOnAction(event -> {
+            // Saving now would write a partial document. 
+            if (loadTask != null) {
+                return;
+            }
+
             try {
-                new SaveFileDialog(stage, bundle).show(editor.getText());
+                SaveFileDialog dialog = new SaveFileDialog(stage, bundle);
+                File file = dialog.show(editor);
+
+                if (file != null) {
+                    restartJournal(file.toPath(), dialog.getEncoding());
+                }
             } catch (IOException e) {
                 showError("io_err", e.getMessage());
             }
@@ -127,9 +169,9 @@ public class MainUI {
 
         loadBtn.setOnAction(event -> {
             try {
-                String s = new LoadFileDialog(stage, bundle).show(); 
-                if (s != null) {
-                    textArea.setText(s);
+                MappedText text = new LoadFileDialog(stage, bundle).show(); 
+                if (text != null) {
+                    loadInBackground(text, stage);
                 }
             } catch (IOException e) {
                 showError("io_err", e.getMessage());
@@ -138,18 +180,9 @@ public class MainUI {
         
         // Plugins dialog button. 
         pluginsBtn.setOnAction(event -> 
-            new PluginsListDialog(bundle, this, pluginManager, scriptManager).show(editor, stage)
+            new PluginsListDialog(bundle, this, pluginManager, scriptManager, monitor).show(editor, stage)
         );
         
-        // Notify the text modification handlers. 
-        textArea.textProperty().addListener((object, oldValue, newValue) -> {
-            synchronized(mutex) {
-                for (TextModificationHandler h : tmHandlers) {
-                    h.onTextModified(oldValue, newValue);
-                }
-            }
-        });
-        
         // Handle key presses. 
         scene.setOnKeyPressed(keyEvent -> {            
             KeyCode key = keyEvent.getCode();
@@ -171,29 +204,14 @@ public class MainUI {
             // If the key is not a function key, check if it is a letter
             // key (A-Z). 
             } else if (key.isLetterKey() && keyMap != null) {
-                KeyMapping match = null; 
                 // Retrieve the key's letter. 
                 char c = key.toString().charAt(0);
-                boolean matchFound = false; 
-                int i = 0; 
-
-                // Iterate through the key map until a match is found
-                // or the end of the map is reached. 
-                while (!matchFound && i < keyMap.size()) {
-                    KeyMapping m = keyMap.get(i); 
-
-                    // Check if the combination matches. 
-                    if (m.getCombo().isCombo(alt, ctrl, shift, c)) {
-                        match = m;
-                        matchFound = true; 
-                    }
 
-                    i++;
-                }
+                // Look up the combination in the key map table. 
+                KeyAction action = keyMap.get(c, KeyCombo.modifierMask(alt, ctrl, shift));
 
                 // Perform the action if the match is found.
-                if (match != null) {
-                    KeyAction action = match.getAction();
+                if (action != null) {
                     doKeyAction(action);
                 }
             }
@@ -204,6 +222,106 @@ public class MainUI {
         stage.show();
     }
 
+    /**
+     * Create the text area's context menu. It replaces the built-in one, 
+     * whose Undo and Redo would use the text area's own history instead 
+     * of the editor's. 
+     * 
+     * @return The context menu. 
+     */
+    private ContextMenu createContextMenu() {
+        MenuItem undo = new MenuItem(bundle.getString("menu_undo"));
+        MenuItem redo = new MenuItem(bundle.getString("menu_redo"));
+        MenuItem cut = new MenuItem(bundle.getString("menu_cut"));
+        MenuItem copy = new MenuItem(bundle.getString("menu_copy"));
+        MenuItem paste = new MenuItem(bundle.getString("menu_paste"));
+        MenuItem delete = new MenuItem(bundle.getString("menu_delete"));
+        MenuItem selectAll = new MenuItem(bundle.getString("menu_select_all"));
+
+        undo.setOnAction(event -> editor.undo());
+        redo.setOnAction(event -> editor.redo());
+        cut.setOnAction(event -> textArea.cut());
+        copy.setOnAction(event -> textArea.copy());
+        paste.setOnAction(event -> textArea.paste());
+        delete.setOnAction(event -> textArea.replaceSelection(""));
+        selectAll.setOnAction(event -> textArea.selectAll());
+
+        ContextMenu menu = new ContextMenu(undo, redo, new SeparatorMenuItem(), 
+            cut, copy, paste, delete, new SeparatorMenuItem(), selectAll);
+
+        menu.setOnShowing(event -> {
+            boolean selected = !textArea.getSelectedText().isEmpty();
+            boolean editable = textArea.isEditable();
+
+            undo.setDisable(!editable || !editor.canUndo());
+            redo.setDisable(!editable || !editor.canRedo());
+            cut.setDisable(!editable || !selected);
+            copy.setDisable(!selected);
+            paste.setDisable(!editable);
+            delete.setDisable(!editable || !selected);
+        });
+
+        return menu;
+    }
+
+    /**
+     * Stream a file into the editor on a worker thread, showing the 
+     * progress and letting the user cancel. 
+     * 
+     * @param text Text of the file. 
+     * @param stage Stage reference. 
+     */
+    private void loadInBackground(MappedText text, Stage stage) {
+        // Only one load may stream into the document at a time. Cancelling 
+        // on the application thread ends the previous load straight away. 
+        if (loadTask != null) {
+            loadTask.cancel();
+        }
+
+        FileLoadTask task = new FileLoadTask(text, editor::appendLoaded);
+
+        task.setOnSucceeded(event -> {
+            task.flush();
+            finishLoad();
+            if (editor.endLoad(true)) {
+                restartJournal(text.getPath(), text.getEncoding().name());
+            } else {
+                restartJournal(null, null);
+            }
+        });
+        task.setOnCancelled(event -> {
+            finishLoad();
+            editor.endLoad(false);
+            restartJournal(null, null);
+        });
+        task.setOnFailed(event -> {
+            finishLoad();
+            editor.endLoad(false);
+            restartJournal(null, null);
+            showError(bundle.getString("io_err"), task.getException().getMessage());
+        });
+
+        loadTask = task;
+        loadBtn.setDisable(true);
+        saveBtn.setDisable(true);
+
+        editor.beginLoad(text);
+        new LoadProgressDialog(stage, bundle).show(task);
+
+        Thread thread = new Thread(task, "file-loader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Allow loading and saving again, once the background load has ended. 
+     */
+    private void finishLoad() {
+        loadTask = null;
+        loadBtn.setDisable(false);
+        saveBtn.setDisable(false);
+    }
+
     /**
      * Perform a key action. 
      * A key action (defined by the KeyAction class) represents
@@ -236,10 +354,10 @@ public class MainUI {
                     case LINE_START -> {
                         int lineStart = findLineStart(); 
 
-                        String currentText = editor.getText(); 
-                        currentText = currentText.substring(lineStart);
+                        // Only compare the text at the start of the line. 
+                        String currentText = editor.getText(lineStart, lineStart + text.length()); 
             
-                        if (currentText.startsWith(text)) {
+                        if (currentText.equals(text)) {
                             editor.deleteText(lineStart, lineStart + text.length());
                         }
                     }
@@ -249,20 +367,13 @@ public class MainUI {
     }
 
     /**
-     * Determine the start of the line, identified by the last newline
-     * sequence from the caret. 
+     * Determine the start of the line containing the caret, using the 
+     * editor's line index. 
      * 
      * @return Index of line start.
      */
     private int findLineStart() {
-        String text = textArea.getText().substring(0, textArea.getCaretPosition()); 
-
-        int start = text.lastIndexOf("\n");
-
-        if (start <= 0) 
-            return 0; 
-        else 
-            return start + 1; 
+        return editor.getLineStart(editor.getLineOfOffset(editor.getCaretPosition())); 
     }
 
     /**
@@ -281,14 +392,120 @@ public class MainUI {
     }
     
     /**
-     * Set the key map list. 
+     * Set the key map. 
      * 
-     * @param keyMap Key map list. 
+     * @param keyMap Compiled key map, or null if there is none. 
      */
-    public void setKeyMapList(List<KeyMapping> keyMap) {
+    public void setKeyMap(KeyMapTable keyMap) {
         this.keyMap = keyMap;
     }
 
+    /**
+     * Set the journal of edits. If the editor did not close normally, 
+     * the document recovered from the journal is loaded. The user is told 
+     * if the journal later fails to be written. 
+     * 
+     * @param journal The journal, or null if there is none. 
+     */
+    public void setJournal(EditJournal journal) {
+        this.journal = journal;
+
+        if (journal != null) {
+            journal.setErrorReporter(message -> 
+                Platform.runLater(() -> showError(bundle.getString("journal_write_err"), message))
+            );
+        }
+
+        if (journal != null && journal.getRecoveredText() != null) {
+            editor.load(journal.getRecoveredText());
+        }
+
+        editor.setJournal(journal);
+    }
+
+    /**
+     * Start the journal again from the current document. 
+     * 
+     * @param file File the document matches, or null if none. 
+     * @param encoding Encoding of the file. 
+     */
+    private void restartJournal(Path file, String encoding) {
+        if (journal != null) {
+            journal.restart(file, encoding, (file == null) ? editor.getText() : null);
+        }
+    }
+
+    /**
+     * Load and start the installed plugins in the background. Failures 
+     * are reported once every plugin has started or failed (or, for 
+     * plugins started on first use, as they fail). 
+     */
+    public void loadPlugins() {
+        pluginManager.setErrorReporter(message -> 
+            Platform.runLater(() -> showError(bundle.getString("plugin_err"), message))
+        );
+        pluginManager.loadInstalled(editor).thenAccept(errors -> {
+            if (!errors.isEmpty()) {
+                Platform.runLater(() -> showError(bundle.getString("plugin_err"), String.join("\n", errors)));
+            }
+        });
+    }
+
+    /**
+     * Close the journal of edits, as the editor is closing normally. 
+     */
+    public void close() {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    /**
+     * Set the memory limit of the undo history. 
+     * 
+     * @param bytes Limit (bytes). 
+     */
+    public void setUndoLimit(long bytes) {
+        editor.setUndoLimit(bytes);
+    }
+
+    /**
+     * Set the time a synchronous text handler may take per change. 
+     * 
+     * @param nanos Time (ns), or 0 for no limit. 
+     */
+    public void setHandlerBudget(long nanos) {
+        editor.setHandlerBudget(nanos);
+    }
+
+    /**
+     * 
+     * @param suspend True to suspend text handlers that keep going over 
+     *        the time budget, false to move them to debounced delivery. 
+     */
+    public void setSuspendSlowHandlers(boolean suspend) {
+        editor.setSuspendSlowHandlers(suspend);
+    }
+
+    /**
+     * Warn the user that a plugin's text handler was too slow, without 
+     * blocking the change being delivered. 
+     * 
+     * @param owner Who registered the handler. 
+     * @param suspended True if it was suspended, false if it was moved to 
+     *        debounced delivery. 
+     */
+    public void warnSlowHandler(String owner, boolean suspended) {
+        Platform.runLater(() -> {
+            Alert alert = new Alert(AlertType.WARNING);
+
+            alert.setHeaderText(bundle.getString(suspended ? "handler_suspended" : "handler_demoted"));
+            alert.setContentText(owner);
+
+            alert.show();
+        });
+    }
+
     /**
      * Add a toolbar button. 
      * (API required method).
@@ -318,13 +535,37 @@ public class MainUI {
     }
 
     /**
-     * Add a text modification callback. 
+     * Add a text change callback. 
      * 
      * @param callback Callback.
      */
-    public void putCallback(TextModificationHandler callback) {
+    public void putCallback(TextChangeHandler callback) {
         synchronized(mutex) {
-            tmHandlers.add(callback);
+            tcHandlers.add(callback);
+        }
+    }
+
+    /**
+     * Notify the text change handlers of a change. 
+     * (API required method).
+     * 
+     * @param change The change. 
+     */
+    public void fireTextChanged(TextChange change) {
+        synchronized(mutex) {
+            for (TextChangeHandler h : tcHandlers) {
+                h.onTextChanged(change);
+            }
+        }
+    }
+
+    /**
+     * Redraw the highlights over the text area. 
+     * (API required method).
+     */
+    public void redrawHighlights() {
+        if (highlightOverlay != null) {
+            highlightOverlay.requestRedraw();
         }
     }
 
@@ -2,8 +2,18 @@ package texteditor.app.ui;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.ResourceBundle;
 
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.scene.control.Button;
@@ -14,16 +24,25 @@ import javafx.scene.control.ToolBar;
 import javafx.scene.layout.BorderPane;
 import javafx.stage.FileChooser;
 import javafx.stage.Window;
+import javafx.util.Duration;
 import texteditor.api.TextEditorAPI;
 import texteditor.api.TextEditorPlugin;
 import texteditor.app.exceptions.PluginLoadFailedException;
 import texteditor.app.model.PyScript;
+import texteditor.app.plugins.CallbackMonitor;
+import texteditor.app.plugins.CallbackStats;
 import texteditor.app.plugins.PluginManager;
 import texteditor.app.plugins.ScriptManager;
+import texteditor.app.plugins.ScriptStats;
 
 /**
  * Shows the list of plugins and scripts used by the application.
  * Plugins and scripts can be added by the user using this interface. 
+ * Plugins that have not been used yet (and so have not been started) 
+ * are marked as such. Each script is shown with its state and the 
+ * resources it has used, and each callback registered by a plugin or 
+ * script with its call count and times, refreshed every second. The 
+ * callback figures can be exported as CSV. 
  * 
  * @author Ryan Martin
  */
@@ -38,6 +57,9 @@ public class PluginsListDialog {
     // Script manager.
     private final ScriptManager scriptManager;
 
+    // Measures the callbacks of the plugins and scripts. 
+    private final CallbackMonitor monitor;
+
     // Reference to the UI for plugin/script error messages. 
     private final MainUI ui;
 
@@ -48,13 +70,16 @@ public class PluginsListDialog {
      * @param ui Reference to the UI for plugin/script error messages. 
      * @param pluginManager Plugin manager. 
      * @param scriptManager Script manager. 
+     * @param monitor Measures the callbacks of the plugins and scripts. 
      */
     public PluginsListDialog(
-        ResourceBundle bundle, MainUI ui, PluginManager pluginManager, ScriptManager scriptManager
+        ResourceBundle bundle, MainUI ui, PluginManager pluginManager, ScriptManager scriptManager, 
+        CallbackMonitor monitor
     ) {
         this.bundle = bundle; 
         this.pluginsManager = pluginManager; 
         this.scriptManager = scriptManager;
+        this.monitor = monitor;
         this.ui = ui;
     }
 
@@ -68,7 +93,8 @@ public class PluginsListDialog {
         // Toolbar buttons. 
         Button addPluginBtn = new Button(bundle.getString("add_plugin") + "...");
         Button addScriptBtn = new Button(bundle.getString("add_script") + "...");
-        ToolBar toolBar = new ToolBar(addPluginBtn, addScriptBtn);
+        Button exportBtn = new Button(bundle.getString("export_stats") + "...");
+        ToolBar toolBar = new ToolBar(addPluginBtn, addScriptBtn, exportBtn);
         
         ObservableList<String> list = FXCollections.observableArrayList();
         ListView<String> listView = new ListView<>(list);   
@@ -78,7 +104,7 @@ public class PluginsListDialog {
             try {
                 TextEditorPlugin p = new AddPluginDialog(bundle, pluginsManager).show(api);
                 if (p != null) 
-                    list.add(p.getPluginName(bundle.getLocale()));
+                    refresh(list);
             } catch (PluginLoadFailedException e) {
                 ui.showError(bundle.getString("plugin_err"), e.getMessage());
             }
@@ -90,25 +116,38 @@ public class PluginsListDialog {
             FileChooser dialog = new FileChooser();
             File script = dialog.showOpenDialog(parent);
 
-            if (script != null && !list.contains(script.getName())) {
+            if (script != null && !hasScript(script.getName())) {
                 try {
                     scriptManager.loadScript(script.getAbsolutePath(), api);
-                    list.add(script.getName());
+                    refresh(list);
                 } catch (IOException e) {
                     ui.showError(bundle.getString("script_err"), bundle.getString("io_err"));
                 }
             }
         });
 
-        // Add plugins and scripts to the list view. 
+        // Set up the handler for the 'Export' button. 
+        exportBtn.setOnAction(event -> {
+            FileChooser dialog = new FileChooser();
+            dialog.setInitialFileName("callbacks.csv");
+            File file = dialog.showSaveDialog(parent);
 
-        for (TextEditorPlugin p : pluginsManager.getPlugins()) {
-            list.add(p.getPluginName(bundle.getLocale()));
-        }
+            if (file != null) {
+                try (Writer out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+                    monitor.exportCsv(out);
+                } catch (IOException e) {
+                    ui.showError(bundle.getString("export_err"), bundle.getString("io_err"));
+                }
+            }
+        });
 
-        for (PyScript s : scriptManager.getScripts()) {
-            list.add(s.getScriptName());
-        }
+        // Add plugins and scripts to the list view, and keep the 
+        // scripts' and callbacks' figures up to date. 
+        refresh(list);
+
+        Timeline refresher = new Timeline(new KeyFrame(Duration.seconds(1), event -> refresh(list)));
+        refresher.setCycleCount(Animation.INDEFINITE);
+        refresher.play();
         
         BorderPane box = new BorderPane();
         box.setTop(toolBar);
@@ -120,5 +159,66 @@ public class PluginsListDialog {
         dialog.getDialogPane().getButtonTypes().add(ButtonType.OK);
         
         dialog.showAndWait();
+        refresher.stop();
+    }
+
+    /**
+     * Fill the list view with the plugins, the scripts and the callbacks, 
+     * and their figures. 
+     * 
+     * @param list Items of the list view. 
+     */
+    private void refresh(ObservableList<String> list) {
+        List<String> items = new ArrayList<>();
+
+        for (TextEditorPlugin p : pluginsManager.getPlugins()) {
+            items.add(p.getPluginName(bundle.getLocale()));
+        }
+
+        for (String name : pluginsManager.getInactivePlugins()) {
+            items.add(MessageFormat.format(bundle.getString("plugin_inactive"), name));
+        }
+
+        for (PyScript s : scriptManager.getScripts()) {
+            ScriptStats stats = scriptManager.getStats(s);
+
+            if (stats == null) {
+                items.add(s.getScriptName());
+            } else {
+                items.add(MessageFormat.format(bundle.getString("script_stats"), 
+                    s.getScriptName(), 
+                    bundle.getString("script_" + stats.getState().name().toLowerCase(Locale.ROOT)), 
+                    stats.getCpuTime() / 1_000_000, 
+                    stats.getAllocatedBytes() / 1024));
+            }
+        }
+
+        for (CallbackStats stats : monitor.getStats()) {
+            items.add(MessageFormat.format(bundle.getString("callback_stats"), 
+                stats.getOwner(), 
+                stats.getCallback(), 
+                stats.getCount(), 
+                stats.getPercentile(50), 
+                stats.getPercentile(99), 
+                stats.getMaxTime() / 1000, 
+                stats.getAllocatedBytes() / 1024));
+        }
+
+        list.setAll(items);
+    }
+
+    /**
+     * 
+     * @param name Script name. 
+     * @return True if a script with the name has been loaded. 
+     */
+    private boolean hasScript(String name) {
+        for (PyScript s : scriptManager.getScripts()) {
+            if (s.getScriptName().equals(name)) {
+                return true;
+            }
+        }
+
+        return false;
     }
 }
\ No newline at end of file
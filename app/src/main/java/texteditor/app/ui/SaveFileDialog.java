@@ -7,6 +7,7 @@ import java.util.ResourceBundle;
 import javafx.stage.FileChooser;
 import javafx.stage.Window;
 import texteditor.app.io.FileIO;
+import texteditor.app.plugins.Editor;
 
 /**
  * Save a file in a specified encoding. 
@@ -20,6 +21,9 @@ public class SaveFileDialog {
     // Resource bundle for localisation. 
     private final ResourceBundle bundle; 
 
+    // Encoding the file was saved in. 
+    private String encoding = null;
+
     /**
      * Constructor 
      * 
@@ -34,16 +38,29 @@ public class SaveFileDialog {
     /**
      * Display the encoding dialog, then the file chooser dialog to save the file. 
      * 
-     * @param fileData File data to save. 
+     * @param editor Editor of the document to save. 
+     * @return The saved file, or null if cancelled. 
      * @throws IOException If an IO exception occurs. 
      */
-    public void show(String fileData) throws IOException {
-        String encoding = new EncodingSelectionDialog(bundle).show();
+    public File show(Editor editor) throws IOException {
+        encoding = new EncodingSelectionDialog(bundle).show();
         FileChooser fc = new FileChooser(); 
-        File file = fc.showSaveDialog(owner);
+        File file = (encoding != null) ? fc.showSaveDialog(owner) : null;
 
         if (file != null) {
-            FileIO.saveFile(file.getAbsolutePath(), fileData, encoding);
+            // The document may still be reading the file being replaced. 
+            editor.releaseFile(file.toPath());
+            FileIO.saveFile(file.getAbsolutePath(), editor.getDocument(), encoding);
         }
+
+        return file;
+    }
+
+    /**
+     * 
+     * @return Encoding the file was saved in. 
+     */
+    public String getEncoding() {
+        return encoding;
     }
 }
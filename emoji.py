@@ -1,10 +1,6 @@
-from texteditor.api import TextModificationHandler
 # Emoji insertion Python script. 
+# The emoji is inserted natively as each key is typed. 
 
-class EmojiHandler(TextModificationHandler):
-    last_three_chars = ""
-
-    def onTextModified(self, prev, current):
-        api.replaceText(":-)", u"\U0001f60a")
-
-api.registerTextModificationHandler(EmojiHandler())
\ No newline at end of file
+api.registerAutoReplace({
+    ":-)": u"\U0001f60a",
+})
\ No newline at end of file
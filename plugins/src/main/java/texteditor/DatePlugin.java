@@ -6,6 +6,7 @@ import java.time.format.FormatStyle;
 import java.util.Locale;
 import java.util.ResourceBundle;
 
+import texteditor.api.PluginDescriptor;
 import texteditor.api.TextEditorAPI;
 import texteditor.api.TextEditorPlugin;
 
@@ -13,6 +14,7 @@ import texteditor.api.TextEditorPlugin;
  * Date plugin.
  * @author Ryan Martin
  */
+@PluginDescriptor(bundle = "dateplugin", name = "name", buttons = "date_btn")
 public class DatePlugin implements TextEditorPlugin {
 
     /**
@@ -21,7 +23,9 @@ public class DatePlugin implements TextEditorPlugin {
     @Override
     public void start(TextEditorAPI api) {
         // Register the date button. 
-        api.registerButton("Date", () -> {
+        ResourceBundle bundle = ResourceBundle.getBundle("dateplugin", api.getLocale());
+
+        api.registerButton(bundle.getString("date_btn"), () -> {
             Locale locale = api.getLocale();
 
             ZonedDateTime dateTime = ZonedDateTime.now(); 
@@ -1,56 +1,213 @@
 package texteditor;
 
+import java.text.MessageFormat;
 import java.text.Normalizer;
 import java.text.Normalizer.Form;
+import java.util.List;
 import java.util.Locale;
 import java.util.ResourceBundle;
+import java.util.regex.PatternSyntaxException;
 
 import texteditor.api.EventHandler;
 import texteditor.api.FunctionKey;
+import texteditor.api.PluginDescriptor;
+import texteditor.api.SearchHandler;
 import texteditor.api.TextEditorAPI;
 import texteditor.api.TextEditorPlugin;
+import texteditor.api.TextRange;
 
 /**
  * Implementation of the find plugin. 
+ * The editor keeps an index of the search term up to date as the text 
+ * changes, so repeated searches do not rescan the text. 
+ * The plugin is started the first time one of its buttons or keys is used. 
  * @author Ryan Martin
  */
+@PluginDescriptor(
+    bundle = "findplugin", 
+    name = "name", 
+    buttons = { "find_btn", "find_prev_btn", "find_regex_btn" }, 
+    functionKeys = { FunctionKey.F3, FunctionKey.F4 }
+)
 public class FindPlugin implements TextEditorPlugin {
 
+    // Highlight layer for search results. 
+    private static final String HIGHLIGHT_LAYER = "find";
+
+    // The last (normalised) search term, or null. 
+    private String term = null;
+
     /**
-     * Register the button and event handler. 
+     * Register the buttons and event handlers. 
      */
     @Override
     public void start(TextEditorAPI api) {
         Locale locale = api.getLocale();
         ResourceBundle bundle = ResourceBundle.getBundle("findplugin", locale);
         
-        EventHandler handler = () -> {
-            // Prompt the user for a string via the API. 
-            String toFind = api.promptUser(bundle.getString("enter_term"));
-
-            // Normalise the text after the caret. 
-            int caretPos = api.getCaretPosition(); 
-            String text = api.getText(caretPos, api.getTextLength());
-            String normalisedText = Normalizer.normalize(text, Form.NFC);
-
-            if (toFind != null) {
-                // Normalise the input. 
-                String normalisedToFind = Normalizer.normalize(toFind, Form.NFC);
-
-                // Find the first index of the occurrance. 
-                int idx = normalisedText.indexOf(normalisedToFind); 
-
-                // Highlight the text. 
-                if (idx != -1) {
-                    api.highlightText(idx, idx + toFind.length());
-                }
+        // Prompt for a new term, then find its next occurrence. 
+        EventHandler find = () -> {
+            if (promptTerm(api, bundle)) {
+                findNext(api);
+            }
+        };
+
+        // Find the next or previous occurrence of the last term. 
+        EventHandler next = () -> {
+            if (term != null || promptTerm(api, bundle)) {
+                findNext(api);
             }
         };
+        EventHandler previous = () -> {
+            if (term != null || promptTerm(api, bundle)) {
+                findPrevious(api);
+            }
+        };
+
+        // Search for a regular expression in the background. 
+        EventHandler regex = () -> findRegex(api, bundle);
+
+        // Register the buttons using the API.
+        api.registerButton(bundle.getString("find_btn"), find);
+        api.registerButton(bundle.getString("find_prev_btn"), previous);
+        api.registerButton(bundle.getString("find_regex_btn"), regex);
+        // Register the function keys. 
+        api.registerOnFunctionKeyEvent(FunctionKey.F3, next);
+        api.registerOnFunctionKeyEvent(FunctionKey.F4, previous);
+    }
+
+    /**
+     * Prompt the user for a search term. The number of occurrences of 
+     * the previous term is shown with the prompt. 
+     * 
+     * @param api The API. 
+     * @param bundle Resource bundle. 
+     * @return True if a term was entered. 
+     */
+    private boolean promptTerm(TextEditorAPI api, ResourceBundle bundle) {
+        String prompt = bundle.getString("enter_term");
+        if (term != null) {
+            prompt += "\n" + MessageFormat.format(bundle.getString("match_count"), api.countAll(term), term);
+        }
+
+        // Prompt the user for a string via the API. 
+        String toFind = api.promptUser(prompt);
+
+        if (toFind == null || toFind.isEmpty()) {
+            return false;
+        }
+
+        // Normalise the input. 
+        term = Normalizer.normalize(toFind, Form.NFC);
+        return true;
+    }
+
+    /**
+     * Highlight the next occurrence after the caret, wrapping around to 
+     * the start of the text. 
+     * 
+     * @param api The API. 
+     */
+    private void findNext(TextEditorAPI api) {
+        int idx = api.findNext(term, api.getCaretPosition());
+        if (idx == -1) {
+            idx = api.findNext(term, 0);
+        }
+
+        highlight(api, idx);
+    }
 
-        // Register the button using the API.
-        api.registerButton(bundle.getString("find_btn") + "...", handler);
-        // Register the function key. 
-        api.registerOnFunctionKeyEvent(FunctionKey.F3, handler);
+    /**
+     * Highlight the previous occurrence before the caret, wrapping around 
+     * to the end of the text. 
+     * 
+     * @param api The API. 
+     */
+    private void findPrevious(TextEditorAPI api) {
+        int caret = api.getCaretPosition();
+
+        // Skip the occurrence that is already highlighted. 
+        int from = caret;
+        if (api.getText(caret - term.length(), caret).equals(term)) {
+            from = caret - term.length();
+        }
+
+        int idx = api.findPrevious(term, from);
+        if (idx == -1) {
+            idx = api.findPrevious(term, api.getTextLength());
+        }
+
+        highlight(api, idx);
+    }
+
+    /**
+     * Prompt the user for a regular expression and search for it in the 
+     * background. Every match is highlighted as it is found, and the first 
+     * match after the caret is selected; if there is none, the first match 
+     * in the text is selected once the search completes. 
+     * 
+     * @param api The API. 
+     * @param bundle Resource bundle. 
+     */
+    private void findRegex(TextEditorAPI api, ResourceBundle bundle) {
+        String prompt = bundle.getString("enter_regex");
+
+        while (true) {
+            String regex = api.promptUser(prompt);
+            if (regex == null || regex.isEmpty()) {
+                return;
+            }
+
+            int caret = api.getCaretPosition();
+            api.clearHighlights(HIGHLIGHT_LAYER);
+
+            try {
+                api.searchRegex(regex, new SearchHandler() {
+                    // First match in the text, and whether a match was highlighted. 
+                    private TextRange first = null;
+                    private boolean found = false;
+
+                    @Override
+                    public void onMatches(List<TextRange> matches) {
+                        api.addHighlights(HIGHLIGHT_LAYER, matches);
+
+                        if (first == null) {
+                            first = matches.get(0);
+                        }
+
+                        for (TextRange r : matches) {
+                            if (!found && r.getStart() >= caret) {
+                                api.highlightText(r.getStart(), r.getEnd());
+                                found = true;
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void onSearchComplete(int count) {
+                        if (!found && first != null) {
+                            api.highlightText(first.getStart(), first.getEnd());
+                        }
+                    }
+                });
+                return;
+            } catch (PatternSyntaxException e) {
+                // Show the error and ask again. 
+                prompt = bundle.getString("enter_regex") + "\n" + e.getDescription();
+            }
+        }
+    }
+
+    /**
+     * Highlight an occurrence of the term. 
+     * 
+     * @param api The API. 
+     * @param idx Index of the occurrence, or -1 if there is none. 
+     */
+    private void highlight(TextEditorAPI api, int idx) {
+        if (idx != -1) {
+            api.highlightText(idx, idx + term.length());
+        }
     }
 
     /**